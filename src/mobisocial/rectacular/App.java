@@ -1,6 +1,10 @@
 package mobisocial.rectacular;
 
 import mobisocial.rectacular.model.DBHelper;
+import mobisocial.rectacular.model.ManagerRegistry;
+import mobisocial.rectacular.services.InboxProcessor;
+import mobisocial.rectacular.social.SocialClient;
+import mobisocial.socialkit.musubi.Musubi;
 import android.app.Application;
 import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -10,6 +14,7 @@ public class App extends Application {
     // Shared preferences constants
     public static final String PREFS_FILE = "rectacular_prefs";
     public static final String PREF_APP_SETUP_COMPLETE = "app_setup_complete";
+    public static final String PREF_HELLO_WATERMARK = "hello_watermark";
     
     // Content URIs
     private static final String URI_SCHEME = "content://";
@@ -21,7 +26,17 @@ public class App extends Application {
     public static final Uri URI_NEW_CONTENT = Uri.parse(
             URI_SCHEME + URI_AUTHORITY + "/new_content");
     
+    // Live as long as the process; there is no point at which to close them
     private SQLiteOpenHelper mDatabaseSource;
+    private ManagerRegistry mManagers;
+    private SocialClient mSocialClient;
+    
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Finish anything left in the inbox by an earlier process
+        InboxProcessor.getInstance(this).scheduleDrain();
+    }
     
     public static SQLiteOpenHelper getDatabaseSource(Context c) {
         Context appAsContext = c.getApplicationContext();
@@ -34,4 +49,33 @@ public class App extends Application {
         }
         return mDatabaseSource;
     }
+    
+    public static ManagerRegistry getManagers(Context c) {
+        Context appAsContext = c.getApplicationContext();
+        return ((App)appAsContext).getManagers();
+    }
+    
+    public synchronized ManagerRegistry getManagers() {
+        if (mManagers == null) {
+            mManagers = new ManagerRegistry(getDatabaseSource());
+        }
+        return mManagers;
+    }
+    
+    public static SocialClient getSocialClient(Context c) {
+        Context appAsContext = c.getApplicationContext();
+        return ((App)appAsContext).getSocialClient();
+    }
+    
+    /**
+     * @return The shared SocialClient, built from the application context.
+     * Only call once Musubi is known to be installed.
+     */
+    public synchronized SocialClient getSocialClient() {
+        if (mSocialClient == null) {
+            Context context = getApplicationContext();
+            mSocialClient = new SocialClient(Musubi.getInstance(context), context);
+        }
+        return mSocialClient;
+    }
 }
@@ -9,6 +9,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import mobisocial.rectacular.fragments.AppListFragment;
+import mobisocial.rectacular.model.DatabaseWriter;
 import mobisocial.rectacular.model.EntryManager;
 import mobisocial.rectacular.model.FeedManager;
 import mobisocial.rectacular.model.FollowingManager;
@@ -16,6 +17,7 @@ import mobisocial.rectacular.model.MEntry.EntryType;
 import mobisocial.rectacular.model.MFeed;
 import mobisocial.rectacular.model.MFollowing;
 import mobisocial.rectacular.model.MUserEntry;
+import mobisocial.rectacular.model.ManagerRegistry;
 import mobisocial.rectacular.model.UserEntryManager;
 import mobisocial.rectacular.services.AppListProcessor;
 import mobisocial.rectacular.social.SocialClient;
@@ -103,10 +105,11 @@ public class MainActivity extends FragmentActivity implements
         }
         
         SQLiteOpenHelper databaseSource = App.getDatabaseSource(this);
-        mFeedManager = new FeedManager(databaseSource);
-        mFollowingManager = new FollowingManager(databaseSource);
-        mUserEntryManager = new UserEntryManager(databaseSource);
-        mEntryManager = new EntryManager(databaseSource);
+        ManagerRegistry managers = App.getManagers(this);
+        mFeedManager = managers.getFeedManager();
+        mFollowingManager = managers.getFollowingManager();
+        mUserEntryManager = managers.getUserEntryManager();
+        mEntryManager = managers.getEntryManager();
         
         // Register a listener for setup completion
         mObserver = new AppSetupCompleteObserver(new Handler(getMainLooper()));
@@ -185,7 +188,12 @@ public class MainActivity extends FragmentActivity implements
                     request = REQUEST_EDIT_FEED;
                 } else {
                     // Delete broken feed entries
-                    mFeedManager.deleteFeed(EntryType.App); // TODO: make this generic
+                    DatabaseWriter.getInstance().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mFeedManager.deleteFeed(EntryType.App); // TODO: make this generic
+                        }
+                    });
                 }
             }
             Intent intent = new Intent(action);
@@ -239,43 +247,65 @@ public class MainActivity extends FragmentActivity implements
                 getContentResolver().registerContentObserver(App.URI_APP_SETUP_COMPLETE, false, mObserver);
                 getContentResolver().notifyChange(App.URI_APP_SETUP, null);
             } else {
-                initializeFeed(feedUri);
+                postInitializeFeed(feedUri);
             }
         } else if (requestCode == REQUEST_EDIT_FEED && resultCode == RESULT_OK) {
             if (data == null || data.getData() == null) {
                 return;
             }
-            Uri feedUri = data.getData();
+            final Uri feedUri = data.getData();
             Log.d(TAG, "feedUri: " + feedUri);
-            MFeed feedEntry = mFeedManager.getFeed(EntryType.App); // TODO: make this generic
-            Set<MFollowing> followingSet = mFollowingManager.getFollowing(feedEntry.id);
-            Set<String> userIds = new HashSet<String>();
-            for (MFollowing following : followingSet) {
-                userIds.add(following.userId);
-            }
-            DbFeed feed = mMusubi.getFeed(feedUri);
-            List<DbIdentity> members = feed.getMembers();
-            List<String> toNotify = new LinkedList<String>();
-            for (DbIdentity member : members) {
-                if (!member.isOwned()) {
-                    Log.d(TAG, "member: " + member.getId() + ", " + member.getName());
-                    if (!userIds.contains(member.getId())) {
-                        Log.d(TAG, "added: " + member.getId() + ", " + member.getName());
-                        MFollowing following = new MFollowing();
-                        following.feedId = feedEntry.id;
-                        following.userId = member.getId();
-                        mFollowingManager.insertFollowing(following);
-                        toNotify.add(following.userId);
-                    }
+            DatabaseWriter.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateFollowing(feedUri);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Follow new members of an edited feed and say hello to them
+     * @param feedUri Uri of the edited feed
+     */
+    private void updateFollowing(Uri feedUri) {
+        MFeed feedEntry = mFeedManager.getFeed(EntryType.App); // TODO: make this generic
+        Set<MFollowing> followingSet = mFollowingManager.getFollowing(feedEntry.id);
+        Set<String> userIds = new HashSet<String>();
+        for (MFollowing following : followingSet) {
+            userIds.add(following.userId);
+        }
+        DbFeed feed = mMusubi.getFeed(feedUri);
+        List<DbIdentity> members = feed.getMembers();
+        List<String> toNotify = new LinkedList<String>();
+        for (DbIdentity member : members) {
+            if (!member.isOwned()) {
+                Log.d(TAG, "member: " + member.getId() + ", " + member.getName());
+                if (!userIds.contains(member.getId())) {
+                    Log.d(TAG, "added: " + member.getId() + ", " + member.getName());
+                    MFollowing following = new MFollowing();
+                    following.feedId = feedEntry.id;
+                    following.userId = member.getId();
+                    mFollowingManager.insertFollowing(following);
+                    toNotify.add(following.userId);
                 }
             }
-            
-            promoteRecs(toNotify);
-            
-            // Send a hello to new members
-            SocialClient sc = new SocialClient(mMusubi, this);
-            sc.sendHello(feedUri, toNotify, EntryType.App); // TODO: make this generic
         }
+        
+        promoteRecs(toNotify);
+        
+        // Send a hello to new members
+        SocialClient sc = App.getSocialClient(this);
+        sc.sendHello(feedUri, toNotify, EntryType.App); // TODO: make this generic
+    }
+    
+    private void postInitializeFeed(final Uri feedUri) {
+        DatabaseWriter.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                initializeFeed(feedUri);
+            }
+        });
     }
     
     private void initializeFeed(Uri feedUri) {
@@ -313,7 +343,7 @@ public class MainActivity extends FragmentActivity implements
         }
         
         // Send a hello to new members
-        SocialClient sc = new SocialClient(mMusubi, this);
+        SocialClient sc = App.getSocialClient(this);
         sc.sendHello(feedUri, toNotify, EntryType.App); // TODO: make this generic
     }
     
@@ -371,7 +401,7 @@ public class MainActivity extends FragmentActivity implements
                 mProgressDialog.dismiss();
             }
             if (mFeedUri != null) {
-                initializeFeed(mFeedUri);
+                postInitializeFeed(mFeedUri);
             }
         }
     }
@@ -2,23 +2,25 @@ package mobisocial.rectacular.fragments;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import mobisocial.rectacular.App;
 import mobisocial.rectacular.R;
 import mobisocial.rectacular.model.EntryManager;
 import mobisocial.rectacular.model.MEntry;
 import mobisocial.rectacular.model.MEntry.EntryType;
+import mobisocial.rectacular.util.ChangeDispatcher;
+import mobisocial.rectacular.util.PagedCursor;
 import mobisocial.rectacular.util.SimpleCursorLoader;
+import mobisocial.rectacular.util.ThumbnailLoader;
 import android.content.Context;
 import android.content.Intent;
-import android.database.ContentObserver;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
@@ -27,6 +29,8 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.CursorAdapter;
@@ -35,112 +39,337 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 public class AppListFragment extends Fragment
-    implements LoaderManager.LoaderCallbacks<Cursor>, OnItemClickListener {
+    implements LoaderManager.LoaderCallbacks<Cursor>, OnItemClickListener, OnScrollListener {
     // TODO: this can be generalized
     private static final String TAG = "AppListFragment";
     
-    private static final long DEFAULT_LIST_LIMIT = 10;
+    private static final long PAGE_SIZE = 25;
+    
+    private static final String ARG_AFTER_COUNT = "after_count";
+    private static final String ARG_AFTER_ID = "after_id";
+    private static final String ARG_LIMIT = "limit";
     
     private FragmentActivity mActivity;
     
     private EntryManager mEntryManager;
+    private ThumbnailLoader mThumbnails;
     
     private EntryListCursorAdapter mEntries;
     private ListView mEntryView;
     
-    private Map<View, String> mMetadata;
-    private Map<View, String> mNames;
+    // Each page is read by the loader with the same index, starting after
+    // the last entry of the page before it
+    private final List<Cursor> mPages = new ArrayList<Cursor>();
+    private final List<Bundle> mPageArgs = new ArrayList<Bundle>();
+    private boolean mLoadingMore;
+    
+    private final ChangeDispatcher.OnChangeListener mChangeListener =
+            new ChangeDispatcher.OnChangeListener() {
+        @Override
+        public void onChange(Uri uri) {
+            mThumbnails.retryMissing();
+            refreshVisiblePages();
+        }
+    };
     
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
         mActivity = getActivity();
         
-        mMetadata = new HashMap<View, String>();
-        mNames = new HashMap<View, String>();
-        
         View v = inflater.inflate(R.layout.top_list, container, false);
         
-        mEntryManager = new EntryManager(App.getDatabaseSource(mActivity));
+        mEntryManager = App.getManagers(mActivity).getEntryManager();
+        mThumbnails = new ThumbnailLoader(
+                App.getManagers(mActivity).getThumbnailManager(), R.drawable.app_icon);
         
         mEntryView = (ListView)v.findViewById(R.id.entry_list);
         mEntryView.setOnItemClickListener(this);
+        mEntryView.setOnScrollListener(this);
         
-        mActivity.getSupportLoaderManager().initLoader(0, null, this);
-        mActivity.getContentResolver().registerContentObserver(App.URI_NEW_CONTENT, false, new ContentObserver(new Handler(getActivity().getMainLooper())) {
-            @Override
-            public void onChange(boolean selfChange) {
-                mActivity.getSupportLoaderManager().restartLoader(0, null, AppListFragment.this);
-            }
-        });
+        loadPage(0, pageArgs(null, PAGE_SIZE));
+        ChangeDispatcher.getInstance(mActivity).register(App.URI_NEW_CONTENT, mChangeListener);
         
         return v;
     }
     
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        ChangeDispatcher.getInstance(mActivity).unregister(mChangeListener);
+        mThumbnails.close();
+        // the loaders outlive the view, so start from the first page next time
+        int pages = Math.max(mPages.size(), mPageArgs.size());
+        mPages.clear();
+        mPageArgs.clear();
+        mLoadingMore = false;
+        mEntries = null;
+        for (int page = 0; page < pages; page++) {
+            mActivity.getSupportLoaderManager().destroyLoader(page);
+        }
+    }
+    
     @Override
     public void onResume() {
         super.onResume();
-        mActivity.getSupportLoaderManager().restartLoader(0, null, this);
+        refreshVisiblePages();
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
+    public Loader<Cursor> onCreateLoader(int page, Bundle args) {
         EntryType type = EntryType.App;
-        return new EntryLoader(mActivity, type);
+        MEntry after = null;
+        if (args.containsKey(ARG_AFTER_ID)) {
+            after = new MEntry();
+            after.count = args.getLong(ARG_AFTER_COUNT);
+            after.id = args.getLong(ARG_AFTER_ID);
+        }
+        return new EntryLoader(mActivity, type, after, args.getLong(ARG_LIMIT));
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        int page = loader.getId();
+        if (page > mPages.size()) {
+            return; // a page before it was dropped
+        }
+        List<Integer> dropped = new ArrayList<Integer>();
+        if (page == mPages.size()) {
+            mPages.add(cursor);
+            mLoadingMore = false;
+        } else {
+            // Later pages start after this one's last entry; if that moved
+            // they are dropped and read again when scrolled to
+            Cursor old = mPages.set(page, cursor);
+            if (page + 1 < mPageArgs.size() && !sameLastEntry(old, cursor)) {
+                for (int later = mPageArgs.size() - 1; later > page; later--) {
+                    if (later < mPages.size()) {
+                        mPages.remove(later);
+                    }
+                    mPageArgs.remove(later);
+                    dropped.add(later);
+                }
+                mLoadingMore = false;
+            }
+        }
+        
+        Cursor entries = new PagedCursor(mPages.toArray(new Cursor[mPages.size()]));
         if (mEntries == null) {
-            mEntries = new EntryListCursorAdapter(mActivity, cursor);
+            mEntries = new EntryListCursorAdapter(mActivity, entries);
+            mEntryView.setAdapter(mEntries);
         } else {
-            mEntries.changeCursor(cursor);
+            // the pages belong to their loaders, so they are not closed here
+            mEntries.swapCursor(entries);
+        }
+        for (int later : dropped) {
+            mActivity.getSupportLoaderManager().destroyLoader(later);
         }
-        mEntryView.setAdapter(mEntries);
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> arg0) {
+    public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() < mPages.size() && mEntries != null) {
+            // a page still on screen is being closed
+            mEntries.swapCursor(null);
+            mPages.clear();
+        }
+    }
+    
+    @Override
+    public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+        if (mLoadingMore || mPages.isEmpty() || mPages.size() < mPageArgs.size()) return;
+        if (firstVisible + visibleCount < totalCount - PAGE_SIZE / 2) return;
+        int last = mPages.size() - 1;
+        Cursor lastPage = mPages.get(last);
+        if (lastPage.getCount() < mPageArgs.get(last).getLong(ARG_LIMIT)) {
+            return; // the end of the list is already shown
+        }
+        lastPage.moveToLast();
+        MEntry after = mEntryManager.fillInStandardFields(lastPage);
+        mLoadingMore = true;
+        loadPage(mPages.size(), pageArgs(after, PAGE_SIZE));
+    }
+    
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+    
+    /**
+     * Read the pages on screen again. Pages above them are left alone,
+     * and pages below are kept only if their start did not move.
+     */
+    private void refreshVisiblePages() {
+        if (mPages.isEmpty()) {
+            if (mPageArgs.isEmpty()) {
+                loadPage(0, pageArgs(null, PAGE_SIZE));
+            }
+            return;
+        }
+        int first = pageAt(mEntryView.getFirstVisiblePosition());
+        int last = pageAt(mEntryView.getLastVisiblePosition());
+        long limit = 0;
+        for (int page = first; page <= last; page++) {
+            limit += mPages.get(page).getCount();
+        }
+        Bundle args = new Bundle(mPageArgs.get(first));
+        args.putLong(ARG_LIMIT, Math.max(limit, PAGE_SIZE));
+        loadPage(first, args);
+    }
+    
+    /**
+     * @param position Position in the list
+     * @return Index of the page showing that position
+     */
+    private int pageAt(int position) {
+        int page = 0;
+        int end = mPages.get(0).getCount();
+        while (position >= end && page + 1 < mPages.size()) {
+            page++;
+            end += mPages.get(page).getCount();
+        }
+        return page;
+    }
+    
+    private void loadPage(int page, Bundle args) {
+        if (page < mPageArgs.size()) {
+            mPageArgs.set(page, args);
+        } else {
+            mPageArgs.add(args);
+        }
+        mActivity.getSupportLoaderManager().restartLoader(page, args, this);
+    }
+    
+    private static Bundle pageArgs(MEntry after, long limit) {
+        Bundle args = new Bundle();
+        if (after != null) {
+            args.putLong(ARG_AFTER_COUNT, after.count);
+            args.putLong(ARG_AFTER_ID, after.id);
+        }
+        args.putLong(ARG_LIMIT, limit);
+        return args;
+    }
+    
+    private static boolean sameLastEntry(Cursor a, Cursor b) {
+        if (a.isClosed() || !a.moveToLast() || !b.moveToLast()) {
+            return false;
+        }
+        int id = a.getColumnIndexOrThrow(MEntry.COL_ID);
+        int count = a.getColumnIndexOrThrow(MEntry.COL_COUNT);
+        return a.getLong(id) == b.getLong(id) && a.getLong(count) == b.getLong(count);
+    }
+    
+    /**
+     * Views of a row, and buffers reused each time it is bound
+     */
+    private static class EntryViewHolder {
+        TextView name;
+        TextView details;
+        ImageView icon;
+        final CharArrayBuffer nameBuffer = new CharArrayBuffer(64);
+        final char[] detailsBuffer = new char[80];
+        
+        // Click data: the row is read again from the cursor when clicked,
+        // so binding does not copy the name or metadata
+        int position;
     }
     
     private class EntryListCursorAdapter extends CursorAdapter {
+        private int mNameColumn;
+        private int mOwnedColumn;
+        private int mCountColumn;
+        private int mFollowingCountColumn;
+        private int mThumbnailHashColumn;
+        
         public EntryListCursorAdapter(Context context, Cursor c) {
             super(context, c, 0);
+            findColumns(c);
+        }
+        
+        @Override
+        public Cursor swapCursor(Cursor c) {
+            if (c != null) {
+                findColumns(c);
+            }
+            return super.swapCursor(c);
+        }
+        
+        private void findColumns(Cursor c) {
+            mNameColumn = c.getColumnIndexOrThrow(MEntry.COL_NAME);
+            mOwnedColumn = c.getColumnIndexOrThrow(MEntry.COL_OWNED);
+            mCountColumn = c.getColumnIndexOrThrow(MEntry.COL_COUNT);
+            mFollowingCountColumn = c.getColumnIndexOrThrow(MEntry.COL_FOLLOWING_COUNT);
+            mThumbnailHashColumn = c.getColumnIndexOrThrow(MEntry.COL_THUMBNAIL_HASH);
         }
         
         @Override
         public View newView(Context context, Cursor c, ViewGroup parent) {
             final LayoutInflater inflater = LayoutInflater.from(context);
             View v = inflater.inflate(R.layout.top_list_item, parent, false);
-            bindView(v, context, c);
+            EntryViewHolder holder = new EntryViewHolder();
+            holder.name = (TextView)v.findViewById(R.id.entry_title);
+            holder.details = (TextView)v.findViewById(R.id.entry_subtitle);
+            holder.icon = (ImageView)v.findViewById(R.id.entry_image);
+            v.setTag(holder);
             return v;
         }
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
-            TextView nameText = (TextView)view.findViewById(R.id.entry_title);
-            TextView detailsText = (TextView)view.findViewById(R.id.entry_subtitle);
-            @SuppressWarnings("unused")
-            ImageView icon = (ImageView)view.findViewById(R.id.entry_image);
+            EntryViewHolder holder = (EntryViewHolder)view.getTag();
+            holder.position = cursor.getPosition();
             
-            MEntry entry = mEntryManager.fillInStandardFields(cursor);
-            nameText.setText(entry.name);
-            long total = entry.count - (entry.owned ? 1 : 0);
-            long friendTotal = entry.followingCount - (entry.owned ? 1 : 0);
-            detailsText.setText("Used by " + total + " others (following " + friendTotal + ")");
+            cursor.copyStringToBuffer(mNameColumn, holder.nameBuffer);
+            holder.name.setText(holder.nameBuffer.data, 0, holder.nameBuffer.sizeCopied);
             
-            if (entry.metadata != null) {
-                mMetadata.put(view, entry.metadata);
-            }
-            mNames.put(view, entry.name);
+            int owned = (cursor.getLong(mOwnedColumn) == 1) ? 1 : 0;
+            long total = cursor.getLong(mCountColumn) - owned;
+            long friendTotal = cursor.getLong(mFollowingCountColumn) - owned;
+            char[] details = holder.detailsBuffer;
+            int length = putString(details, 0, "Used by ");
+            length = putLong(details, length, total);
+            length = putString(details, length, " others (following ");
+            length = putLong(details, length, friendTotal);
+            length = putString(details, length, ")");
+            holder.details.setText(details, 0, length);
+            
+            // only rows with a thumbnail need the hash as a String
+            String thumbnailHash = cursor.isNull(mThumbnailHashColumn) ?
+                    null : cursor.getString(mThumbnailHashColumn);
+            mThumbnails.load(holder.icon, thumbnailHash);
         }
     }
+    
+    private static int putString(char[] buffer, int offset, String s) {
+        s.getChars(0, s.length(), buffer, offset);
+        return offset + s.length();
+    }
+    
+    private static int putLong(char[] buffer, int offset, long value) {
+        if (value < 0) {
+            buffer[offset++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char)('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        EntryViewHolder holder = (EntryViewHolder)view.getTag();
+        Cursor c = (Cursor)mEntries.getItem(holder.position);
+        if (c == null) {
+            return;
+        }
         // If we have metadata, use that directly, else search by name
-        String metadata = mMetadata.get(view);
-        String name = mNames.get(view);
+        String metadata = c.getString(c.getColumnIndexOrThrow(MEntry.COL_METADATA));
+        String name = c.getString(c.getColumnIndexOrThrow(MEntry.COL_NAME));
         Uri marketUri = null;
         if (metadata != null) {
             marketUri = Uri.parse("market://details?id=" + metadata);
@@ -160,18 +389,24 @@ public class AppListFragment extends Fragment
     public static class EntryLoader extends SimpleCursorLoader {
         private EntryManager mEntryManager;
         private EntryType mType;
+        private MEntry mAfter;
+        private long mLimit;
         
-        public EntryLoader(Context context, EntryType type) {
+        public EntryLoader(Context context, EntryType type, MEntry after, long limit) {
             super(context);
-            SQLiteOpenHelper helper = App.getDatabaseSource(context);
-            mEntryManager = new EntryManager(helper);
+            mEntryManager = App.getManagers(context).getEntryManager();
             mType = type;
+            mAfter = after;
+            mLimit = limit;
         }
 
         @Override
         public Cursor loadInBackground() {
-            Cursor c = mEntryManager.getDiscoveredTopEntriesCursor(mType, DEFAULT_LIST_LIMIT);
-            c.setNotificationUri(getContext().getContentResolver(), App.URI_NEW_CONTENT);
+            long start = SystemClock.uptimeMillis();
+            Cursor c = mEntryManager.getDiscoveredTopEntriesCursor(mType, mAfter, mLimit);
+            c.getCount(); // fill the window here, not on the UI thread
+            Log.d(TAG, c.getCount() + " top entries read in " +
+                    (SystemClock.uptimeMillis() - start) + "ms");
             return c;
         }
     }
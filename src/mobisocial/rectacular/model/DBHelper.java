@@ -2,15 +2,17 @@ package mobisocial.rectacular.model;
 
 import mobisocial.rectacular.App;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 public class DBHelper extends SQLiteOpenHelper {
     private static final String TAG = "DBHelper";
     
     private static final String DB_NAME = "Rectacular.db";
-    private static final int VERSION = 3;
+    private static final int VERSION = 17;
     
     private Context mContext;
     
@@ -28,8 +30,9 @@ public class DBHelper extends SQLiteOpenHelper {
                 MEntry.COL_OWNED, "INTEGER NOT NULL",
                 MEntry.COL_COUNT, "INTEGER NOT NULL",
                 MEntry.COL_FOLLOWING_COUNT, "INTEGER NOT NULL",
-                MEntry.COL_THUMBNAIL, "BLOB",
-                MEntry.COL_METADATA, "TEXT");
+                MEntry.COL_THUMBNAIL_HASH, "TEXT",
+                MEntry.COL_METADATA, "TEXT",
+                MEntry.COL_CHANGE_SEQUENCE, "INTEGER NOT NULL DEFAULT 0");
         
         createTable(db, MUserEntry.TABLE,
                 MUserEntry.COL_ID, "INTEGER PRIMARY KEY",
@@ -40,7 +43,10 @@ public class DBHelper extends SQLiteOpenHelper {
                 MFollower.COL_ID, "INTEGER PRIMARY KEY",
                 MFollower.COL_USER_ID, "TEXT NOT NULL",
                 MFollower.COL_TYPE, "INTEGER NOT NULL",
-                MFollower.COL_FEED_URI, "TEXT NOT NULL");
+                MFollower.COL_FEED_URI, "TEXT NOT NULL",
+                MFollower.COL_FORMAT, "INTEGER NOT NULL DEFAULT 0",
+                MFollower.COL_SYNC_SEQUENCE, "INTEGER NOT NULL DEFAULT 0",
+                MFollower.COL_COMPRESSION, "INTEGER NOT NULL DEFAULT 0");
         
         createTable(db, MFeed.TABLE,
                 MFeed.COL_ID, "INTEGER PRIMARY KEY",
@@ -52,22 +58,84 @@ public class DBHelper extends SQLiteOpenHelper {
                 MFollowing.COL_FEED_ID, "INTEGER NOT NULL",
                 MFollowing.COL_USER_ID, "TEXT NOT NULL");
         
+        createTable(db, MInstalledApp.TABLE,
+                MInstalledApp.COL_ID, "INTEGER PRIMARY KEY",
+                MInstalledApp.COL_PACKAGE_NAME, "TEXT NOT NULL",
+                MInstalledApp.COL_LAST_UPDATE, "INTEGER NOT NULL",
+                MInstalledApp.COL_LABEL_HASH, "INTEGER NOT NULL",
+                MInstalledApp.COL_ENTRY_ID, "INTEGER NOT NULL");
+        
+        createTable(db, MInboxItem.TABLE,
+                MInboxItem.COL_ID, "INTEGER PRIMARY KEY",
+                MInboxItem.COL_OBJ_URI, "TEXT NOT NULL",
+                MInboxItem.COL_RECEIVED, "INTEGER NOT NULL",
+                MInboxItem.COL_ATTEMPTS, "INTEGER NOT NULL DEFAULT 0",
+                MInboxItem.COL_RETRY_AFTER, "INTEGER NOT NULL DEFAULT 0");
+        
+        createTable(db, MThumbnail.TABLE,
+                MThumbnail.COL_ID, "INTEGER PRIMARY KEY",
+                MThumbnail.COL_HASH, "TEXT NOT NULL",
+                MThumbnail.COL_DATA, "BLOB NOT NULL");
+        
+        createTable(db, MSeenObj.TABLE,
+                MSeenObj.COL_ID, "INTEGER PRIMARY KEY",
+                MSeenObj.COL_UNIVERSAL_HASH, "TEXT NOT NULL",
+                MSeenObj.COL_SEEN, "INTEGER NOT NULL");
+        
+        createTable(db, MForwarded.TABLE,
+                MForwarded.COL_ID, "INTEGER PRIMARY KEY",
+                MForwarded.COL_FOLLOWER_ID, "INTEGER NOT NULL",
+                MForwarded.COL_ENTRY_ID, "INTEGER NOT NULL",
+                MForwarded.COL_OWNER, "TEXT NOT NULL");
+        
         db.execSQL("CREATE INDEX " + MEntry.TABLE + "_type ON " +
                 MEntry.TABLE + "(" + MEntry.COL_TYPE + ")");
-        db.execSQL("CREATE INDEX " + MEntry.TABLE + "_type_name ON " +
+        db.execSQL("CREATE UNIQUE INDEX " + MEntry.TABLE + "_type_name ON " +
                 MEntry.TABLE + "(" + MEntry.COL_TYPE + "," +
                 MEntry.COL_NAME + ")");
         db.execSQL("CREATE INDEX " + MEntry.TABLE + "_type_fct ON " +
                 MEntry.TABLE + "(" + MEntry.COL_TYPE + "," +
                 MEntry.COL_FOLLOWING_COUNT + ")");
+        db.execSQL("CREATE INDEX " + MEntry.TABLE + "_type_owned_count ON " +
+                MEntry.TABLE + "(" + MEntry.COL_TYPE + "," +
+                MEntry.COL_OWNED + "," + MEntry.COL_COUNT + ")");
+        db.execSQL("CREATE INDEX " + MEntry.TABLE + "_change_seq ON " +
+                MEntry.TABLE + "(" + MEntry.COL_CHANGE_SEQUENCE + ")");
 
         db.execSQL("CREATE INDEX " + MUserEntry.TABLE + "_user ON " +
                 MUserEntry.TABLE + "(" + MUserEntry.COL_USER_ID + ")");
-        db.execSQL("CREATE INDEX " + MUserEntry.TABLE + "_entry ON " +
-                MUserEntry.TABLE + "(" + MUserEntry.COL_ENTRY_ID + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + MUserEntry.TABLE + "_entry_user ON " +
+                MUserEntry.TABLE + "(" + MUserEntry.COL_ENTRY_ID + "," +
+                MUserEntry.COL_USER_ID + ")");
         
         db.execSQL("CREATE INDEX " + MFollower.TABLE + "_type ON " +
                 MFollower.TABLE + "(" + MFollower.COL_TYPE + ")");
+        
+        db.execSQL("CREATE UNIQUE INDEX " + MInstalledApp.TABLE + "_package ON " +
+                MInstalledApp.TABLE + "(" + MInstalledApp.COL_PACKAGE_NAME + ")");
+        db.execSQL("CREATE INDEX " + MInstalledApp.TABLE + "_entry ON " +
+                MInstalledApp.TABLE + "(" + MInstalledApp.COL_ENTRY_ID + ")");
+        
+        db.execSQL("CREATE UNIQUE INDEX " + MThumbnail.TABLE + "_hash ON " +
+                MThumbnail.TABLE + "(" + MThumbnail.COL_HASH + ")");
+        
+        db.execSQL("CREATE UNIQUE INDEX " + MSeenObj.TABLE + "_hash ON " +
+                MSeenObj.TABLE + "(" + MSeenObj.COL_UNIVERSAL_HASH + ")");
+        
+        db.execSQL("CREATE UNIQUE INDEX " + MForwarded.TABLE + "_fact ON " +
+                MForwarded.TABLE + "(" + MForwarded.COL_FOLLOWER_ID + "," +
+                MForwarded.COL_ENTRY_ID + "," + MForwarded.COL_OWNER + ")");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Readers get their own pooled connections and see the last
+            // commit, so list queries no longer wait behind ingestion.
+            // ReadLatencyTest measures this on a device.
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
@@ -92,6 +160,184 @@ public class DBHelper extends SQLiteOpenHelper {
         }
         
         if (oldVersion <= 3) {
+            // Fold duplicate (type, name) entries into the oldest row
+            String keep = "(SELECT MIN(d." + MEntry.COL_ID + ") FROM " + MEntry.TABLE + " d" +
+                    " WHERE d." + MEntry.COL_TYPE + "=" + MEntry.TABLE + "." + MEntry.COL_TYPE +
+                    " AND d." + MEntry.COL_NAME + "=" + MEntry.TABLE + "." + MEntry.COL_NAME + ")";
+            String dups = "FROM " + MEntry.TABLE + " d" +
+                    " WHERE d." + MEntry.COL_TYPE + "=" + MEntry.TABLE + "." + MEntry.COL_TYPE +
+                    " AND d." + MEntry.COL_NAME + "=" + MEntry.TABLE + "." + MEntry.COL_NAME;
+            db.execSQL("UPDATE " + MEntry.TABLE + " SET " +
+                    MEntry.COL_OWNED + "=(SELECT MAX(d." + MEntry.COL_OWNED + ") " + dups + ")," +
+                    MEntry.COL_COUNT + "=(SELECT SUM(d." + MEntry.COL_COUNT + ") " + dups + ")," +
+                    MEntry.COL_FOLLOWING_COUNT + "=(SELECT SUM(d." + MEntry.COL_FOLLOWING_COUNT + ") " + dups + ")," +
+                    MEntry.COL_METADATA + "=COALESCE(" + MEntry.COL_METADATA +
+                    ",(SELECT MAX(d." + MEntry.COL_METADATA + ") " + dups + "))" +
+                    " WHERE " + MEntry.COL_ID + "=" + keep);
+            db.execSQL("UPDATE " + MUserEntry.TABLE + " SET " + MUserEntry.COL_ENTRY_ID + "=" +
+                    "(SELECT k." + MEntry.COL_ID + " FROM " + MEntry.TABLE + " e, " + MEntry.TABLE + " k" +
+                    " WHERE e." + MEntry.COL_ID + "=" + MUserEntry.TABLE + "." + MUserEntry.COL_ENTRY_ID +
+                    " AND k." + MEntry.COL_TYPE + "=e." + MEntry.COL_TYPE +
+                    " AND k." + MEntry.COL_NAME + "=e." + MEntry.COL_NAME +
+                    " ORDER BY k." + MEntry.COL_ID + " LIMIT 1)" +
+                    " WHERE " + MUserEntry.COL_ENTRY_ID + " IN (SELECT " + MEntry.COL_ID +
+                    " FROM " + MEntry.TABLE + ")");
+            db.execSQL("DELETE FROM " + MEntry.TABLE + " WHERE " + MEntry.COL_ID + "<>" + keep);
+            
+            // Make (type, name) a real key
+            db.execSQL("DROP INDEX IF EXISTS " + MEntry.TABLE + "_type_name");
+            db.execSQL("CREATE UNIQUE INDEX " + MEntry.TABLE + "_type_name ON " +
+                    MEntry.TABLE + "(" + MEntry.COL_TYPE + "," +
+                    MEntry.COL_NAME + ")");
+        }
+        
+        if (oldVersion <= 4) {
+            // Drop duplicate user-entry pairs and recount owners from what is left
+            db.execSQL("DELETE FROM " + MUserEntry.TABLE + " WHERE " + MUserEntry.COL_ID +
+                    " NOT IN (SELECT MIN(" + MUserEntry.COL_ID + ") FROM " + MUserEntry.TABLE +
+                    " GROUP BY " + MUserEntry.COL_ENTRY_ID + "," + MUserEntry.COL_USER_ID + ")");
+            String owners = "(SELECT COUNT(*) FROM " + MUserEntry.TABLE + " WHERE " +
+                    MUserEntry.TABLE + "." + MUserEntry.COL_ENTRY_ID + "=" +
+                    MEntry.TABLE + "." + MEntry.COL_ID;
+            db.execSQL("UPDATE " + MEntry.TABLE + " SET " +
+                    MEntry.COL_COUNT + "=" + owners + ")," +
+                    MEntry.COL_FOLLOWING_COUNT + "=" + owners + " AND " +
+                    MUserEntry.TABLE + "." + MUserEntry.COL_USER_ID + " IN (SELECT " +
+                    MFollowing.COL_USER_ID + " FROM " + MFollowing.TABLE + "))");
+            
+            // The unique pair index also serves lookups by entry
+            db.execSQL("DROP INDEX IF EXISTS " + MUserEntry.TABLE + "_entry");
+            db.execSQL("CREATE UNIQUE INDEX " + MUserEntry.TABLE + "_entry_user ON " +
+                    MUserEntry.TABLE + "(" + MUserEntry.COL_ENTRY_ID + "," +
+                    MUserEntry.COL_USER_ID + ")");
+        }
+        
+        if (oldVersion <= 5) {
+            createTable(db, MInstalledApp.TABLE,
+                    MInstalledApp.COL_ID, "INTEGER PRIMARY KEY",
+                    MInstalledApp.COL_PACKAGE_NAME, "TEXT NOT NULL",
+                    MInstalledApp.COL_LAST_UPDATE, "INTEGER NOT NULL",
+                    MInstalledApp.COL_LABEL_HASH, "INTEGER NOT NULL",
+                    MInstalledApp.COL_ENTRY_ID, "INTEGER NOT NULL");
+            db.execSQL("CREATE UNIQUE INDEX " + MInstalledApp.TABLE + "_package ON " +
+                    MInstalledApp.TABLE + "(" + MInstalledApp.COL_PACKAGE_NAME + ")");
+            db.execSQL("CREATE INDEX " + MInstalledApp.TABLE + "_entry ON " +
+                    MInstalledApp.TABLE + "(" + MInstalledApp.COL_ENTRY_ID + ")");
+        }
+        
+        if (oldVersion <= 6) {
+            createTable(db, MInboxItem.TABLE,
+                    MInboxItem.COL_ID, "INTEGER PRIMARY KEY",
+                    MInboxItem.COL_OBJ_URI, "TEXT NOT NULL",
+                    MInboxItem.COL_RECEIVED, "INTEGER NOT NULL");
+        }
+        
+        if (oldVersion <= 7) {
+            // Existing followers only read JSON until they say hello again
+            db.execSQL("ALTER TABLE " + MFollower.TABLE + " ADD COLUMN " +
+                    MFollower.COL_FORMAT + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        if (oldVersion <= 8) {
+            // Every follower gets one more full snapshot
+            db.execSQL("ALTER TABLE " + MFollower.TABLE + " ADD COLUMN " +
+                    MFollower.COL_SYNC_SEQUENCE + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        if (oldVersion <= 9) {
+            createTable(db, MThumbnail.TABLE,
+                    MThumbnail.COL_ID, "INTEGER PRIMARY KEY",
+                    MThumbnail.COL_HASH, "TEXT NOT NULL",
+                    MThumbnail.COL_DATA, "BLOB NOT NULL");
+            db.execSQL("CREATE UNIQUE INDEX " + MThumbnail.TABLE + "_hash ON " +
+                    MThumbnail.TABLE + "(" + MThumbnail.COL_HASH + ")");
+            db.execSQL("ALTER TABLE " + MEntry.TABLE + " ADD COLUMN " +
+                    MEntry.COL_THUMBNAIL_HASH + " TEXT");
+            
+            // Move inline thumbnails into the shared table. Plain SQL, since
+            // the managers' statements expect columns added after this.
+            SQLiteStatement saveThumbnail = db.compileStatement(
+                    "INSERT OR IGNORE INTO " + MThumbnail.TABLE + "(" +
+                    MThumbnail.COL_HASH + "," + MThumbnail.COL_DATA + ") VALUES (?,?)");
+            SQLiteStatement updateEntry = db.compileStatement(
+                    "UPDATE " + MEntry.TABLE + " SET " + MEntry.COL_THUMBNAIL_HASH + "=?" +
+                    " WHERE " + MEntry.COL_ID + "=?");
+            Cursor c = db.query(MEntry.TABLE,
+                    new String[] { MEntry.COL_ID, MEntry.COL_THUMBNAIL },
+                    MEntry.COL_THUMBNAIL + " IS NOT NULL", null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    byte[] thumbnail = c.getBlob(1);
+                    String thumbnailHash = ThumbnailManager.hashOf(thumbnail);
+                    saveThumbnail.bindString(1, thumbnailHash);
+                    saveThumbnail.bindBlob(2, thumbnail);
+                    saveThumbnail.executeInsert();
+                    updateEntry.bindString(1, thumbnailHash);
+                    updateEntry.bindLong(2, c.getLong(0));
+                    updateEntry.executeUpdateDelete();
+                }
+            } finally {
+                c.close();
+                saveThumbnail.close();
+                updateEntry.close();
+            }
+            db.execSQL("UPDATE " + MEntry.TABLE + " SET " + MEntry.COL_THUMBNAIL + "=NULL");
+        }
+        
+        if (oldVersion <= 10) {
+            db.execSQL("ALTER TABLE " + MFollower.TABLE + " ADD COLUMN " +
+                    MFollower.COL_COMPRESSION + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        if (oldVersion <= 11) {
+            createTable(db, MSeenObj.TABLE,
+                    MSeenObj.COL_ID, "INTEGER PRIMARY KEY",
+                    MSeenObj.COL_UNIVERSAL_HASH, "TEXT NOT NULL",
+                    MSeenObj.COL_SEEN, "INTEGER NOT NULL");
+            db.execSQL("CREATE UNIQUE INDEX " + MSeenObj.TABLE + "_hash ON " +
+                    MSeenObj.TABLE + "(" + MSeenObj.COL_UNIVERSAL_HASH + ")");
+        }
+        
+        if (oldVersion <= 12) {
+            createTable(db, MForwarded.TABLE,
+                    MForwarded.COL_ID, "INTEGER PRIMARY KEY",
+                    MForwarded.COL_FOLLOWER_ID, "INTEGER NOT NULL",
+                    MForwarded.COL_ENTRY_ID, "INTEGER NOT NULL",
+                    MForwarded.COL_OWNER, "TEXT NOT NULL");
+            db.execSQL("CREATE UNIQUE INDEX " + MForwarded.TABLE + "_fact ON " +
+                    MForwarded.TABLE + "(" + MForwarded.COL_FOLLOWER_ID + "," +
+                    MForwarded.COL_ENTRY_ID + "," + MForwarded.COL_OWNER + ")");
+        }
+        
+        if (oldVersion <= 14) {
+            db.execSQL("ALTER TABLE " + MEntry.TABLE + " ADD COLUMN " +
+                    MEntry.COL_CHANGE_SEQUENCE + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX " + MEntry.TABLE + "_change_seq ON " +
+                    MEntry.TABLE + "(" + MEntry.COL_CHANGE_SEQUENCE + ")");
+            // Sync sequences counted user entries before; every follower
+            // gets one more full snapshot
+            db.execSQL("UPDATE " + MFollower.TABLE + " SET " +
+                    MFollower.COL_SYNC_SEQUENCE + "=0");
+        }
+        
+        if (oldVersion <= 15) {
+            db.execSQL("ALTER TABLE " + MInboxItem.TABLE + " ADD COLUMN " +
+                    MInboxItem.COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + MInboxItem.TABLE + " ADD COLUMN " +
+                    MInboxItem.COL_RETRY_AFTER + " INTEGER NOT NULL DEFAULT 0");
+        }
+        
+        if (oldVersion <= 16) {
+            // The count index was descending, which SQLite before 3.7.10
+            // ignores, so the top list was sorted there anyway. Rebuilt
+            // ascending and walked backwards instead.
+            db.execSQL("DROP INDEX IF EXISTS " + MEntry.TABLE + "_type_owned_count");
+            db.execSQL("CREATE INDEX " + MEntry.TABLE + "_type_owned_count ON " +
+                    MEntry.TABLE + "(" + MEntry.COL_TYPE + "," +
+                    MEntry.COL_OWNED + "," + MEntry.COL_COUNT + ")");
+        }
+        
+        if (oldVersion <= 17) {
             // etc...
         }
         
@@ -0,0 +1,163 @@
+package mobisocial.rectacular.model;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The one thread that writes to the database. Every mutation made through
+ * the managers in this package should run here, so writes are serialized in
+ * submission order and never wait on each other for the SQLite lock.
+ * Short urgent work, such as a receiver saving to the inbox, can go ahead
+ * of the queue; long tasks keep their transactions short and let it run in
+ * between.
+ */
+public class DatabaseWriter implements Executor {
+    private static final String TAG = "DatabaseWriter";
+
+    private static DatabaseWriter sInstance;
+
+    private final ScheduledExecutorService mExecutor;
+    private final Queue<Runnable> mUrgent = new ConcurrentLinkedQueue<Runnable>();
+    private volatile Thread mThread;
+
+    private final Runnable mUrgentTask = new Runnable() {
+        @Override
+        public void run() {
+            runUrgent();
+        }
+    };
+
+    public static synchronized DatabaseWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new DatabaseWriter();
+        }
+        return sInstance;
+    }
+
+    private DatabaseWriter() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DatabaseWriterThread");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                mThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue work to run on the writer thread
+     * @param task Work that writes to the database
+     */
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(guard(task));
+    }
+
+    /**
+     * Queue short work to run on the writer thread ahead of other queued
+     * work. It runs before the next task starts, or sooner where the
+     * running task calls {@link #runUrgent()}.
+     * @param task Short work that writes to the database
+     */
+    public void executeUrgent(Runnable task) {
+        mUrgent.add(task);
+        mExecutor.execute(mUrgentTask); // in case the writer is idle
+    }
+
+    /**
+     * Run the urgent work queued so far. Long tasks on the writer thread
+     * call this between their transactions; inside one it does nothing.
+     */
+    public void runUrgent() {
+        if (!isWriterThread() || TransactionHooks.inTransaction()) {
+            return;
+        }
+        Runnable task;
+        while ((task = mUrgent.poll()) != null) {
+            runGuarded(task);
+        }
+    }
+
+    /**
+     * Queue work to run on the writer thread after a delay
+     * @param task Work that writes to the database
+     * @param delayMs Milliseconds to wait before running
+     * @return ScheduledFuture that can cancel the work
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return mExecutor.schedule(guard(task), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run work on the writer thread and wait for its result. Runs immediately
+     * when called from the writer thread itself.
+     * @param task Work that writes to the database
+     * @return The result of the task
+     */
+    public <T> T call(final Callable<T> task) {
+        try {
+            if (isWriterThread()) {
+                return task.call();
+            }
+            Future<T> result = mExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    runUrgent();
+                    return task.call();
+                }
+            });
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true if the calling thread is the writer thread
+     */
+    public boolean isWriterThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    private Runnable guard(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runUrgent();
+                runGuarded(task);
+            }
+        };
+    }
+
+    private static void runGuarded(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // keep the writer alive for the next task
+            Log.e(TAG, "database write failed", e);
+        }
+    }
+}
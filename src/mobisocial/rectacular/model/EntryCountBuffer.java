@@ -0,0 +1,302 @@
+package mobisocial.rectacular.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Coalesces entry count increments in memory and writes them in batches.
+ * Pending increments are written after a short delay, once enough distinct
+ * entries are pending, or when the writer flushes before telling readers
+ * of new content. Increments made inside a transaction only join the
+ * pending set once it commits. Readers that need exact counts add the
+ * increments not yet written instead of waiting for a flush.
+ */
+class EntryCountBuffer {
+    private static final String TAG = "EntryCountBuffer";
+
+    private static final int MAX_PENDING = 256;
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    private static final int COUNT = 0;
+    private static final int FOLLOWING_COUNT = 1;
+
+    private final Object mLock = new Object();
+    private Map<Long, long[]> mPending = new HashMap<Long, long[]>();
+    // Increments made in the transaction open on this thread
+    private final ThreadLocal<Map<Long, long[]>> mUncommitted =
+            new ThreadLocal<Map<Long, long[]>>();
+    // Batches being written by flushes whose transactions have not ended
+    private final List<Flushing> mFlushing = new ArrayList<Flushing>();
+    private int mFlushesEnded;
+    private SQLiteDatabase mDatabase;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private static class Flushing {
+        final Thread thread = Thread.currentThread();
+        final Map<Long, long[]> batch;
+
+        Flushing(Map<Long, long[]> batch) {
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Increments a reader cannot see in the database, taken before it reads
+     */
+    class Unwritten {
+        private final int mFlushesEnded;
+        private final Map<Long, long[]> mDeltas;
+
+        private Unwritten(int flushesEnded, Map<Long, long[]> deltas) {
+            mFlushesEnded = flushesEnded;
+            mDeltas = deltas;
+        }
+
+        /**
+         * @return false if a flush ended since this was taken, so rows read
+         * since may already hold some of the increments
+         */
+        public boolean isCurrent() {
+            synchronized(mLock) {
+                return mFlushesEnded == EntryCountBuffer.this.mFlushesEnded;
+            }
+        }
+
+        /**
+         * Add the increments to an entry read from the database
+         * @param entry MEntry object with counts read
+         */
+        public void addTo(MEntry entry) {
+            long[] deltas = mDeltas.get(entry.id);
+            if (deltas == null) return;
+            entry.count += deltas[COUNT];
+            entry.followingCount += deltas[FOLLOWING_COUNT];
+        }
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            SQLiteDatabase db;
+            synchronized(mLock) {
+                mScheduledFlush = null;
+                db = mDatabase;
+            }
+            if (db != null) {
+                flush(db);
+            }
+        }
+    };
+
+    /**
+     * Queue an increment for an entry. Inside a transaction the increment
+     * is held back until it commits, and dropped if it rolls back.
+     * @param db Database the entry lives in
+     * @param entryId MEntry id
+     * @param count Amount to add to the total count
+     * @param followingCount Amount to add to the following count
+     */
+    public void add(SQLiteDatabase db, long entryId, long count, long followingCount) {
+        if (TransactionHooks.inTransaction()) {
+            addTo(uncommitted(db), entryId, count, followingCount);
+            return;
+        }
+        synchronized(mLock) {
+            mDatabase = db;
+            addTo(mPending, entryId, count, followingCount);
+            schedulePending();
+        }
+    }
+
+    /**
+     * @return Increments of the current transaction, merged into the pending
+     * set when it commits
+     */
+    private Map<Long, long[]> uncommitted(final SQLiteDatabase db) {
+        Map<Long, long[]> uncommitted = mUncommitted.get();
+        if (uncommitted == null) {
+            final Map<Long, long[]> created = new HashMap<Long, long[]>();
+            mUncommitted.set(created);
+            TransactionHooks.onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    mUncommitted.remove();
+                    if (created.isEmpty()) return;
+                    synchronized(mLock) {
+                        mDatabase = db;
+                        requeue(created);
+                        schedulePending();
+                    }
+                }
+            });
+            TransactionHooks.onRollback(new Runnable() {
+                @Override
+                public void run() {
+                    mUncommitted.remove();
+                }
+            });
+            uncommitted = created;
+        }
+        return uncommitted;
+    }
+
+    /**
+     * Take the increments not yet readable from the database: pending ones,
+     * ones being written, and this thread's own uncommitted ones. Take it
+     * before reading, and read again if it is no longer current.
+     * @return Increments to add to what is read
+     */
+    public Unwritten getUnwritten() {
+        Map<Long, long[]> deltas = new HashMap<Long, long[]>();
+        Map<Long, long[]> uncommitted = mUncommitted.get();
+        if (uncommitted != null) {
+            addAll(deltas, uncommitted);
+        }
+        synchronized(mLock) {
+            addAll(deltas, mPending);
+            for (Flushing flushing : mFlushing) {
+                // a flush in this thread's transaction is already readable here
+                if (flushing.thread != Thread.currentThread()) {
+                    addAll(deltas, flushing.batch);
+                }
+            }
+            return new Unwritten(mFlushesEnded, deltas);
+        }
+    }
+
+    private static void addTo(Map<Long, long[]> pending, long entryId, long count,
+            long followingCount) {
+        long[] deltas = pending.get(entryId);
+        if (deltas == null) {
+            deltas = new long[2];
+            pending.put(entryId, deltas);
+        }
+        deltas[COUNT] += count;
+        deltas[FOLLOWING_COUNT] += followingCount;
+    }
+
+    // Must hold mLock
+    private void schedulePending() {
+        if (mPending.size() >= MAX_PENDING) {
+            scheduleFlush(0);
+        } else if (mScheduledFlush == null) {
+            scheduleFlush(FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Write all pending increments in one transaction on the
+     * {@link DatabaseWriter} thread. The transaction is started before the
+     * pending set is taken, so a caller that returns from flush always sees
+     * every increment queued before the call. Called inside a transaction,
+     * the increments of that transaction are written too, and everything
+     * taken is queued again if it rolls back.
+     * @param db Database to write to
+     */
+    public void flush(SQLiteDatabase db) {
+        Map<Long, long[]> uncommitted = mUncommitted.get();
+        synchronized(mLock) {
+            if (mPending.isEmpty() && (uncommitted == null || uncommitted.isEmpty())) return;
+        }
+        TransactionHooks.begin(db);
+        try {
+            final Map<Long, long[]> batch;
+            final Flushing flushing;
+            synchronized(mLock) {
+                batch = mPending;
+                mPending = new HashMap<Long, long[]>();
+                flushing = new Flushing(batch);
+                mFlushing.add(flushing);
+            }
+            TransactionHooks.onCommit(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(mLock) {
+                        endFlush(flushing);
+                    }
+                }
+            });
+            TransactionHooks.onRollback(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(mLock) {
+                        endFlush(flushing);
+                        requeue(batch);
+                    }
+                }
+            });
+            Map<Long, long[]> writes = batch;
+            if (uncommitted != null && !uncommitted.isEmpty()) {
+                // written along with the transaction that made them, so
+                // they are not queued again on rollback
+                writes = new HashMap<Long, long[]>();
+                addAll(writes, batch);
+                addAll(writes, uncommitted);
+                uncommitted.clear();
+            }
+            if (writes.isEmpty()) {
+                db.setTransactionSuccessful();
+                return;
+            }
+            StringBuilder sql = new StringBuilder()
+                .append("UPDATE ").append(MEntry.TABLE)
+                .append(" SET ")
+                .append(MEntry.COL_COUNT).append("=")
+                .append(MEntry.COL_COUNT).append("+?,")
+                .append(MEntry.COL_FOLLOWING_COUNT).append("=")
+                .append(MEntry.COL_FOLLOWING_COUNT).append("+?,")
+                .append(MEntry.COL_CHANGE_SEQUENCE).append("=")
+                .append(EntryManager.NEXT_CHANGE_SEQUENCE)
+                .append(" WHERE ").append(MEntry.COL_ID).append("=?");
+            SQLiteStatement statement = db.compileStatement(sql.toString());
+            try {
+                for (Map.Entry<Long, long[]> pending : writes.entrySet()) {
+                    long[] deltas = pending.getValue();
+                    statement.bindLong(1, deltas[COUNT]);
+                    statement.bindLong(2, deltas[FOLLOWING_COUNT]);
+                    statement.bindLong(3, pending.getKey());
+                    statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+            Log.d(TAG, "flushed counts for " + writes.size() + " entries");
+        } finally {
+            TransactionHooks.end(db);
+        }
+    }
+
+    // Must hold mLock
+    private void endFlush(Flushing flushing) {
+        mFlushing.remove(flushing);
+        mFlushesEnded++;
+    }
+
+    // Must hold mLock
+    private void requeue(Map<Long, long[]> batch) {
+        addAll(mPending, batch);
+    }
+
+    private static void addAll(Map<Long, long[]> pending, Map<Long, long[]> more) {
+        for (Map.Entry<Long, long[]> deltas : more.entrySet()) {
+            addTo(pending, deltas.getKey(), deltas.getValue()[COUNT],
+                    deltas.getValue()[FOLLOWING_COUNT]);
+        }
+    }
+
+    // Must hold mLock
+    private void scheduleFlush(long delay) {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+        }
+        mScheduledFlush = DatabaseWriter.getInstance().schedule(mFlushTask, delay);
+    }
+}
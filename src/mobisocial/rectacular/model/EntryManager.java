@@ -1,18 +1,23 @@
 package mobisocial.rectacular.model;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import mobisocial.rectacular.model.MEntry.EntryType;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.util.Log;
+import android.util.LruCache;
 
 public class EntryManager extends ManagerBase {
-    private static final String TAG = "EntryManager";
-    
     private static final String[] STANDARD_FIELDS = {
         MEntry.COL_ID,
         MEntry.COL_TYPE,
@@ -20,7 +25,7 @@ public class EntryManager extends ManagerBase {
         MEntry.COL_OWNED,
         MEntry.COL_COUNT,
         MEntry.COL_FOLLOWING_COUNT,
-        MEntry.COL_THUMBNAIL,
+        MEntry.COL_THUMBNAIL_HASH,
         MEntry.COL_METADATA
     };
     
@@ -30,14 +35,40 @@ public class EntryManager extends ManagerBase {
     private static final int owned = 3;
     private static final int count = 4;
     private static final int followingCount = 5;
-    private static final int thumbnail = 6;
+    private static final int thumbnailHash = 6;
     private static final int metadata = 7;
+    
+    private static final String[] CACHED_FIELDS = {
+        MEntry.COL_ID,
+        MEntry.COL_OWNED,
+        MEntry.COL_METADATA
+    };
+    
+    private static final int CACHE_SIZE = 1024;
+    
+    /**
+     * Entry identity, ownership and metadata keyed by type and name. Cached
+     * objects are never modified; changes replace or remove them. Entries
+     * cached in a transaction are removed again if it rolls back.
+     */
+    private static final LruCache<String, MEntry> sEntryCache =
+            new LruCache<String, MEntry>(CACHE_SIZE);
+    
+    private static final EntryCountBuffer sCountBuffer = new EntryCountBuffer();
+    
+    /**
+     * Value for {@link MEntry#COL_CHANGE_SEQUENCE} of a row being changed
+     */
+    static final String NEXT_CHANGE_SEQUENCE = "(SELECT IFNULL(MAX(" +
+            MEntry.COL_CHANGE_SEQUENCE + "),0)+1 FROM " + MEntry.TABLE + ")";
 
     private SQLiteStatement sqlInsertEntry;
-    private SQLiteStatement sqlUpdateEntryCount;
     private SQLiteStatement sqlUpdateEntryThumbnail;
     private SQLiteStatement sqlUpdateEntryOwned;
     private SQLiteStatement sqlUpdateEntryMetadata;
+    private SQLiteStatement sqlInsertOrIgnoreEntry;
+    private SQLiteStatement sqlMergeEntry;
+    private SQLiteStatement sqlGetLatestChangeSequence;
 
     public EntryManager(SQLiteDatabase db) {
         super(db);
@@ -64,9 +95,10 @@ public class EntryManager extends ManagerBase {
                         .append(MEntry.COL_OWNED).append(",")
                         .append(MEntry.COL_COUNT).append(",")
                         .append(MEntry.COL_FOLLOWING_COUNT).append(",")
-                        .append(MEntry.COL_THUMBNAIL).append(",")
-                        .append(MEntry.COL_METADATA)
-                        .append(") VALUES (?,?,?,?,?,?,?)");
+                        .append(MEntry.COL_THUMBNAIL_HASH).append(",")
+                        .append(MEntry.COL_METADATA).append(",")
+                        .append(MEntry.COL_CHANGE_SEQUENCE)
+                        .append(") VALUES (?,?,?,?,?,?,?,").append(NEXT_CHANGE_SEQUENCE).append(")");
                     sqlInsertEntry = db.compileStatement(sql.toString());
                 }
             }
@@ -77,47 +109,56 @@ public class EntryManager extends ManagerBase {
             bindField(sqlInsertEntry, owned, entry.owned);
             bindField(sqlInsertEntry, count, 0); // inserted entries always have 0 owners
             bindField(sqlInsertEntry, followingCount, 0); // inserted entries always have 0 owners
-            bindField(sqlInsertEntry, thumbnail, entry.thumbnail);
+            bindField(sqlInsertEntry, thumbnailHash, entry.thumbnailHash);
             bindField(sqlInsertEntry, metadata, entry.metadata);
             entry.id = sqlInsertEntry.executeInsert();
         }
+        cacheEntry(entry);
     }
     
     /**
-     * Increment the number of times the entry has been seen
+     * Increment the number of times the entry has been seen. The increment is
+     * buffered and written in a batch; see {@link #flushCounts()}. Made in
+     * a transaction, it is only kept if the transaction commits.
      * @param entryId MEntry id
      * @param addOne Whether or not to add to the total count
      * @param addFollowing Whether or not to add to the following count
      */
     public void updateCount(long entryId, boolean addOne, boolean addFollowing) {
         if (!addOne && !addFollowing) return;
-        SQLiteDatabase db = initializeDatabase();
-        if (sqlUpdateEntryCount == null) {
-            synchronized(this) {
-                if (sqlUpdateEntryCount == null) {
-                    StringBuilder sql = new StringBuilder()
-                        .append("UPDATE ").append(MEntry.TABLE)
-                        .append(" SET ")
-                        .append(MEntry.COL_COUNT).append("=")
-                        .append(MEntry.COL_COUNT).append("+?,")
-                        .append(MEntry.COL_FOLLOWING_COUNT).append("=")
-                        .append(MEntry.COL_FOLLOWING_COUNT).append("+?")
-                        .append(" WHERE ").append(MEntry.COL_ID).append("=?");
-                    sqlUpdateEntryCount = db.compileStatement(sql.toString());
-                }
+        sCountBuffer.add(initializeDatabase(), entryId, addOne ? 1 : 0, addFollowing ? 1 : 0);
+    }
+    
+    /**
+     * Decrement the number of times the entry has been seen, buffered like
+     * {@link #updateCount(long, boolean, boolean)}
+     * @param entryId MEntry id
+     * @param removeFollowing Whether or not to subtract from the following count
+     */
+    public void removeFromCount(long entryId, boolean removeFollowing) {
+        sCountBuffer.add(initializeDatabase(), entryId, -1, removeFollowing ? -1 : 0);
+    }
+    
+    /**
+     * Write any buffered count increments. Only the writer flushes, before
+     * telling readers of new content; readers add what is still buffered
+     * themselves instead of waiting on the writer.
+     */
+    public void flushCounts() {
+        final SQLiteDatabase db = initializeDatabase();
+        DatabaseWriter.getInstance().call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                sCountBuffer.flush(db);
+                return null;
             }
-        }
-        synchronized(sqlUpdateEntryCount) {
-            bindField(sqlUpdateEntryCount, 1, addOne ? 1 : 0);
-            bindField(sqlUpdateEntryCount, 2, addFollowing ? 1 : 0);
-            bindField(sqlUpdateEntryCount, 3, entryId);
-            sqlUpdateEntryCount.executeUpdateDelete();
-        }
+        });
     }
     
     /**
-     * Add a thumbnail to an entry
-     * @param entry MEntry object containing a valid thumbnail
+     * Point an entry at a thumbnail. Entries share thumbnails with identical
+     * content; store the data with {@link ThumbnailManager#saveThumbnail(byte[])}.
+     * @param entry MEntry object containing a thumbnail hash
      */
     public void updateThumbnail(MEntry entry) {
         SQLiteDatabase db = initializeDatabase();
@@ -127,14 +168,16 @@ public class EntryManager extends ManagerBase {
                     StringBuilder sql = new StringBuilder()
                         .append("UPDATE ").append(MEntry.TABLE)
                         .append(" SET ")
-                        .append(MEntry.COL_THUMBNAIL).append("=?")
-                        .append(" WHERE ").append(MEntry.COL_ID).append("=?");
+                        .append(MEntry.COL_THUMBNAIL_HASH).append("=?1,")
+                        .append(MEntry.COL_CHANGE_SEQUENCE).append("=").append(NEXT_CHANGE_SEQUENCE)
+                        .append(" WHERE ").append(MEntry.COL_ID).append("=?2")
+                        .append(" AND ").append(MEntry.COL_THUMBNAIL_HASH).append(" IS NOT ?1");
                     sqlUpdateEntryThumbnail = db.compileStatement(sql.toString());
                 }
             }
         }
         synchronized(sqlUpdateEntryThumbnail) {
-            bindField(sqlUpdateEntryThumbnail, 1, entry.thumbnail);
+            bindField(sqlUpdateEntryThumbnail, 1, entry.thumbnailHash);
             bindField(sqlUpdateEntryThumbnail, 2, entry.id);
             sqlUpdateEntryThumbnail.executeUpdateDelete();
         }
@@ -152,7 +195,8 @@ public class EntryManager extends ManagerBase {
                     StringBuilder sql = new StringBuilder()
                         .append("UPDATE ").append(MEntry.TABLE)
                         .append(" SET ")
-                        .append(MEntry.COL_OWNED).append("=?")
+                        .append(MEntry.COL_OWNED).append("=?,")
+                        .append(MEntry.COL_CHANGE_SEQUENCE).append("=").append(NEXT_CHANGE_SEQUENCE)
                         .append(" WHERE ").append(MEntry.COL_ID).append("=?");
                     sqlUpdateEntryOwned = db.compileStatement(sql.toString());
                 }
@@ -163,6 +207,7 @@ public class EntryManager extends ManagerBase {
             bindField(sqlUpdateEntryOwned, 2, entry.id);
             sqlUpdateEntryOwned.executeUpdateDelete();
         }
+        uncacheEntry(entry);
     }
     
     /**
@@ -177,7 +222,8 @@ public class EntryManager extends ManagerBase {
                     StringBuilder sql = new StringBuilder()
                         .append("UPDATE ").append(MEntry.TABLE)
                         .append(" SET ")
-                        .append(MEntry.COL_METADATA).append("=?")
+                        .append(MEntry.COL_METADATA).append("=?,")
+                        .append(MEntry.COL_CHANGE_SEQUENCE).append("=").append(NEXT_CHANGE_SEQUENCE)
                         .append(" WHERE ").append(MEntry.COL_ID).append("=?");
                     sqlUpdateEntryMetadata = db.compileStatement(sql.toString());
                 }
@@ -188,50 +234,173 @@ public class EntryManager extends ManagerBase {
             bindField(sqlUpdateEntryMetadata, 2, entry.id);
             sqlUpdateEntryMetadata.executeUpdateDelete();
         }
+        uncacheEntry(entry);
     }
     
     /**
-     * Insert an entry, or update it if it already exists
+     * Insert an entry, or update it if it already exists. Relies on the unique
+     * (type, name) index so that concurrent callers never create duplicates.
      * @param type EntryType of the entry
      * @param name String name of the entry
      * @param metadata Optional String of metadata associated with the entry
      * @param incrementCt true to add to the count, false otherwise
      * @param incrementFCt true to add to the following count, false otherwise
      * @param setOwned Whether or not to set as owned
-     * @return MEntry object
+     * @return long id of the entry
      */
-    public MEntry ensureEntry(
+    public long ensureEntry(
             EntryType type, String name, String metadata,
             boolean incrementCt, boolean incrementFCt, boolean setOwned) {
         SQLiteDatabase db = initializeDatabase();
-        db.beginTransaction();
+        if (sqlInsertOrIgnoreEntry == null) {
+            synchronized(this) {
+                if (sqlInsertOrIgnoreEntry == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR IGNORE INTO ").append(MEntry.TABLE)
+                        .append("(")
+                        .append(MEntry.COL_TYPE).append(",")
+                        .append(MEntry.COL_NAME).append(",")
+                        .append(MEntry.COL_OWNED).append(",")
+                        .append(MEntry.COL_COUNT).append(",")
+                        .append(MEntry.COL_FOLLOWING_COUNT).append(",")
+                        .append(MEntry.COL_METADATA).append(",")
+                        .append(MEntry.COL_CHANGE_SEQUENCE)
+                        .append(") VALUES (?,?,?,0,0,?,").append(NEXT_CHANGE_SEQUENCE).append(")");
+                    sqlInsertOrIgnoreEntry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        if (sqlMergeEntry == null) {
+            synchronized(this) {
+                if (sqlMergeEntry == null) {
+                    // ?1 owned, ?2 metadata, ?3 count delta, ?4 following delta, ?5 type, ?6 name
+                    StringBuilder sql = new StringBuilder()
+                        .append("UPDATE ").append(MEntry.TABLE)
+                        .append(" SET ")
+                        .append(MEntry.COL_OWNED).append("=MAX(")
+                        .append(MEntry.COL_OWNED).append(",?1),")
+                        .append(MEntry.COL_METADATA).append("=COALESCE(?2,")
+                        .append(MEntry.COL_METADATA).append("),")
+                        .append(MEntry.COL_COUNT).append("=")
+                        .append(MEntry.COL_COUNT).append("+?3,")
+                        .append(MEntry.COL_FOLLOWING_COUNT).append("=")
+                        .append(MEntry.COL_FOLLOWING_COUNT).append("+?4,")
+                        .append(MEntry.COL_CHANGE_SEQUENCE).append("=").append(NEXT_CHANGE_SEQUENCE)
+                        .append(" WHERE ").append(MEntry.COL_TYPE).append("=?5")
+                        .append(" AND ").append(MEntry.COL_NAME).append("=?6")
+                        .append(" AND (").append(MEntry.COL_OWNED).append("<?1")
+                        .append(" OR (?2 IS NOT NULL AND ")
+                        .append(MEntry.COL_METADATA).append(" IS NOT ?2)")
+                        .append(" OR ?3>0 OR ?4>0)");
+                    sqlMergeEntry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        MEntry cached = sEntryCache.get(cacheKey(type, name));
+        boolean ownedChanged = cached == null || (setOwned && !cached.owned);
+        boolean metadataChanged = cached == null ||
+                (metadata != null && !metadata.equals(cached.metadata));
+        if (!ownedChanged && !metadataChanged && !incrementCt && !incrementFCt) {
+            return cached.id; // nothing to write
+        }
+        TransactionHooks.begin(db);
         try {
-            MEntry entry = getEntry(type, name);
-            if (entry != null) {
-                updateCount(entry.id, incrementCt, incrementFCt);
-                if (setOwned && !entry.owned) {
-                    entry.owned = true;
-                    updateOwned(entry);
+            long id = -1;
+            if (cached == null) {
+                synchronized(sqlInsertOrIgnoreEntry) {
+                    bindField(sqlInsertOrIgnoreEntry, 1, type.ordinal());
+                    bindField(sqlInsertOrIgnoreEntry, 2, name);
+                    bindField(sqlInsertOrIgnoreEntry, 3, setOwned);
+                    bindField(sqlInsertOrIgnoreEntry, 4, metadata);
+                    id = sqlInsertOrIgnoreEntry.executeInsert();
                 }
-                if (metadata != null &&
-                        (entry.metadata == null || !entry.metadata.equals(metadata))) {
+                if (id != -1) {
+                    MEntry entry = new MEntry();
+                    entry.id = id;
+                    entry.type = type;
+                    entry.name = name;
+                    entry.owned = setOwned;
                     entry.metadata = metadata;
-                    updateMetadata(entry);
+                    cacheEntry(entry);
+                }
+            }
+            if (id == -1) {
+                // already there, so only touch what needs changing
+                synchronized(sqlMergeEntry) {
+                    bindField(sqlMergeEntry, 1, setOwned);
+                    bindField(sqlMergeEntry, 2, metadata);
+                    bindField(sqlMergeEntry, 3, incrementCt ? 1 : 0);
+                    bindField(sqlMergeEntry, 4, incrementFCt ? 1 : 0);
+                    bindField(sqlMergeEntry, 5, type.ordinal());
+                    bindField(sqlMergeEntry, 6, name);
+                    sqlMergeEntry.executeUpdateDelete();
+                }
+                if (cached != null) {
+                    MEntry entry = copyCachedFields(cached);
+                    entry.owned = cached.owned || setOwned;
+                    if (metadata != null) {
+                        entry.metadata = metadata;
+                    }
+                    cacheEntry(entry);
+                    id = cached.id;
+                } else {
+                    id = loadCachedEntry(type, name).id;
                 }
-            } else {
-                entry = new MEntry();
-                entry.type = type;
-                entry.name = name;
-                entry.owned = setOwned;
-                entry.count = 0L;
-                entry.followingCount = 0L;
-                entry.metadata = metadata;
-                insertEntry(entry);
             }
             db.setTransactionSuccessful();
-            return entry;
+            return id;
+        } finally {
+            TransactionHooks.end(db);
+        }
+    }
+    
+    /**
+     * Insert or update a batch of entries of one type in a single transaction
+     * @param type EntryType of the entries
+     * @param entries MEntry objects with a name and optional metadata
+     * @param setOwned Whether or not to set every entry as owned
+     * @return Map of entry name to the stored MEntry object
+     */
+    public Map<String, MEntry> ensureEntries(
+            EntryType type, Collection<MEntry> entries, boolean setOwned) {
+        // later duplicates win, as they would with repeated ensureEntry calls
+        Map<String, String> wanted = new LinkedHashMap<String, String>();
+        for (MEntry entry : entries) {
+            wanted.put(entry.name, entry.metadata);
+        }
+        SQLiteDatabase db = initializeDatabase();
+        TransactionHooks.begin(db);
+        try {
+            Map<String, MEntry> result = getEntries(type, wanted.keySet());
+            for (Map.Entry<String, String> want : wanted.entrySet()) {
+                MEntry entry = result.get(want.getKey());
+                String metadata = want.getValue();
+                if (entry != null) {
+                    if (setOwned && !entry.owned) {
+                        entry.owned = true;
+                        updateOwned(entry);
+                    }
+                    if (metadata != null &&
+                            (entry.metadata == null || !entry.metadata.equals(metadata))) {
+                        entry.metadata = metadata;
+                        updateMetadata(entry);
+                    }
+                } else {
+                    entry = new MEntry();
+                    entry.type = type;
+                    entry.name = want.getKey();
+                    entry.owned = setOwned;
+                    entry.count = 0L;
+                    entry.followingCount = 0L;
+                    entry.metadata = metadata;
+                    insertEntry(entry);
+                    result.put(entry.name, entry);
+                }
+            }
+            db.setTransactionSuccessful();
+            return result;
         } finally {
-            db.endTransaction();
+            TransactionHooks.end(db);
         }
     }
     
@@ -242,21 +411,34 @@ public class EntryManager extends ManagerBase {
      * @return MEntry object
      */
     public MEntry getEntry(EntryType type, String name) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MEntry.TABLE;
         String selection = MEntry.COL_TYPE + "=? AND " + MEntry.COL_NAME + "=?";
         String[] selectionArgs = new String[]{ Integer.toString(type.ordinal()), name };
-        String groupBy = null, having = null, orderBy = null;
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
-        try {
-            if (c.moveToFirst()) {
-                return fillInStandardFields(c);
-            } else {
+        String orderBy = null, limit = null;
+        List<MEntry> entries = queryEntries(selection, selectionArgs, orderBy, limit);
+        if (entries.isEmpty()) {
+            return null;
+        }
+        MEntry entry = entries.get(0);
+        cacheEntry(entry);
+        return entry;
+    }
+    
+    /**
+     * Get the identity, ownership and metadata of an entry, without its
+     * counts or thumbnail. Served from memory when possible.
+     * @param type Type of the entry
+     * @param name Unique name of the entry
+     * @return MEntry object with id, type, name, owned and metadata set
+     */
+    public MEntry getCachedEntry(EntryType type, String name) {
+        MEntry cached = sEntryCache.get(cacheKey(type, name));
+        if (cached == null) {
+            cached = loadCachedEntry(type, name);
+            if (cached == null) {
                 return null;
             }
-        } finally {
-            c.close();
         }
+        return copyCachedFields(cached);
     }
     
     /**
@@ -265,22 +447,47 @@ public class EntryManager extends ManagerBase {
      * @return List of MEntry objects
      */
     public List<MEntry> getEntries(EntryType type) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MEntry.TABLE;
         String selection = MEntry.COL_TYPE + "=?";
         String[] selectionArgs = new String[]{ Integer.toString(type.ordinal()) };
-        String groupBy = null, having = null;
         String orderBy = MEntry.COL_COUNT + " DESC";
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
-        try {
-            List<MEntry> entries = new ArrayList<MEntry>();
-            while (c.moveToNext()) {
-                entries.add(fillInStandardFields(c));
+        String limit = null;
+        return sortByCount(queryEntries(selection, selectionArgs, orderBy, limit));
+    }
+    
+    /**
+     * Get the entries of a given type matching any of a set of names
+     * @param type EntryType of the desired entries
+     * @param names Names of the desired entries
+     * @return Map of entry name to MEntry object for the entries that exist
+     */
+    public Map<String, MEntry> getEntries(EntryType type, Collection<String> names) {
+        SQLiteDatabase db = initializeDatabase();
+        Map<String, MEntry> entries = new HashMap<String, MEntry>();
+        List<String> pending = new ArrayList<String>(names);
+        int chunkSize = MAX_SQL_ARGS - 1; // one argument is used by the type
+        for (int start = 0; start < pending.size(); start += chunkSize) {
+            List<String> chunk = pending.subList(start, Math.min(start + chunkSize, pending.size()));
+            String table = MEntry.TABLE;
+            String selection = MEntry.COL_TYPE + "=? AND " +
+                    MEntry.COL_NAME + " IN (" + placeholders(chunk.size()) + ")";
+            String[] selectionArgs = new String[chunk.size() + 1];
+            selectionArgs[0] = Integer.toString(type.ordinal());
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i + 1] = chunk.get(i);
+            }
+            String groupBy = null, having = null, orderBy = null;
+            Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
+            try {
+                while (c.moveToNext()) {
+                    MEntry entry = fillInStandardFields(c);
+                    cacheEntry(entry);
+                    entries.put(entry.name, entry);
+                }
+            } finally {
+                c.close();
             }
-            return entries;
-        } finally {
-            c.close();
         }
+        return entries;
     }
     
     /**
@@ -289,13 +496,39 @@ public class EntryManager extends ManagerBase {
      * @return List of MEntry objects
      */
     public List<MEntry> getOneLevelEntries(EntryType type) {
+        return getOneLevelEntries(type, 0, 0, null);
+    }
+    
+    /**
+     * Get a page of the entries of a given type no more than 1 level away
+     * that changed after a given point: new owners, new counts, metadata or
+     * thumbnail. Pages are in id order, so the last id of one page starts
+     * the next.
+     * @param type EntryType of the desired type
+     * @param sinceChangeSequence Change sequence to start after, from
+     * {@link #getLatestChangeSequence()} (0 for all entries)
+     * @param afterId MEntry id to start after (0 for the first page)
+     * @param lim The maximum number to fetch (null if no limit)
+     * @return List of MEntry objects, as of the last count flush; call
+     * {@link #flushCounts()} on the writer first
+     */
+    public List<MEntry> getOneLevelEntries(
+            EntryType type, long sinceChangeSequence, long afterId, Long lim) {
         SQLiteDatabase db = initializeDatabase();
         String table = MEntry.TABLE;
-        String selection = MEntry.COL_TYPE + "=? AND " + MEntry.COL_FOLLOWING_COUNT + "> 0";
-        String[] selectionArgs = new String[]{ Integer.toString(type.ordinal()) };
+        String selection = MEntry.COL_TYPE + "=? AND " + MEntry.COL_FOLLOWING_COUNT + "> 0" +
+                " AND " + MEntry.COL_ID + ">?";
+        String[] selectionArgs = new String[]{
+                Integer.toString(type.ordinal()), Long.toString(afterId) };
+        if (sinceChangeSequence > 0) {
+            selection += " AND " + MEntry.COL_CHANGE_SEQUENCE + ">?";
+            selectionArgs = new String[]{ Integer.toString(type.ordinal()),
+                    Long.toString(afterId), Long.toString(sinceChangeSequence) };
+        }
         String groupBy = null, having = null;
-        String orderBy = MEntry.COL_COUNT + " DESC";
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
+        String orderBy = MEntry.COL_ID + " ASC";
+        String limit = (lim != null) ? lim.toString() : null;
+        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy, limit);
         try {
             List<MEntry> entries = new ArrayList<MEntry>();
             while (c.moveToNext()) {
@@ -307,6 +540,29 @@ public class EntryManager extends ManagerBase {
         }
     }
     
+    /**
+     * Get the sequence number of the latest change to any entry. Buffered
+     * counts only become changes when they are written, so call
+     * {@link #flushCounts()} on the writer first.
+     * @return Change sequence, or 0 if there are no entries
+     */
+    public long getLatestChangeSequence() {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlGetLatestChangeSequence == null) {
+            synchronized(this) {
+                if (sqlGetLatestChangeSequence == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT IFNULL(MAX(").append(MEntry.COL_CHANGE_SEQUENCE).append("),0)")
+                        .append(" FROM ").append(MEntry.TABLE);
+                    sqlGetLatestChangeSequence = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlGetLatestChangeSequence) {
+            return sqlGetLatestChangeSequence.simpleQueryForLong();
+        }
+    }
+    
     /**
      * Get the entities of a given type most common amongst followed users.
      * @param type The type of entry desired
@@ -314,26 +570,14 @@ public class EntryManager extends ManagerBase {
      * @return List of MEntry objects
      */
     public List<MEntry> getTopEntries(EntryType type, Long lim) {
-        SQLiteDatabase db = initializeDatabase();
-        String table = MEntry.TABLE;
         String selection = MEntry.COL_TYPE + "=?";
         String[] selectionArgs = new String[]{ Integer.toString(type.ordinal()) };
-        String groupBy = null, having = null;
         String orderBy = MEntry.COL_COUNT + " DESC";
         String limit = null;
         if (lim != null) {
             limit = lim.toString();
         }
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy, limit);
-        try {
-            List<MEntry> entries = new ArrayList<MEntry>();
-            while (c.moveToNext()) {
-                entries.add(fillInStandardFields(c));
-            }
-            return entries;
-        } finally {
-            c.close();
-        }
+        return sortByCount(queryEntries(selection, selectionArgs, orderBy, limit));
     }
     
     /**
@@ -356,28 +600,200 @@ public class EntryManager extends ManagerBase {
     }
     
     /**
-     * Get a cursor of top matches
+     * Get a cursor of top matches, walking the type_owned_count index so
+     * no sort is needed. Ties are broken by id to keep the order stable.
      * @param type EntryType of the entry
      * @param lim Maximum number to return
      * @return Cursor object
      */
     public Cursor getDiscoveredTopEntriesCursor(EntryType type, Long lim) {
+        return getDiscoveredTopEntriesCursor(type, null, lim);
+    }
+    
+    /**
+     * Get a cursor of the top matches ranked below a given entry, for
+     * reading the list a page at a time
+     * @param type EntryType of the entry
+     * @param after Entry with the count and id the page starts after, or
+     * null for the first page
+     * @param lim Maximum number to return
+     * @return Cursor object
+     */
+    public Cursor getDiscoveredTopEntriesCursor(EntryType type, MEntry after, Long lim) {
+        // No flushCounts() here: waiting on the writer would stall the list
+        // behind ingestion. Writers flush before notifying of new content.
         SQLiteDatabase db = initializeDatabase();
         String table = MEntry.TABLE;
-        String selection = MEntry.COL_TYPE + "=? AND " + MEntry.COL_OWNED + "=?";
-        String[] selectionArgs = new String[]{
-                Integer.toString(type.ordinal()),
-                Integer.toString(0)
-        };
+        TopEntriesQuery query = new TopEntriesQuery(type, after);
         String groupBy = null, having = null;
-        String orderBy = MEntry.COL_COUNT + " DESC";
         String limit = null;
         if (lim != null) {
             limit = lim.toString();
         }
-        Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs, groupBy, having, orderBy, limit);
-        Log.d(TAG, "count: " + c.getCount());
-        return c;
+        return db.query(table, STANDARD_FIELDS, query.selection, query.selectionArgs,
+                groupBy, having, TopEntriesQuery.ORDER_BY, limit);
+    }
+    
+    /**
+     * Selection and order of the discovered top list, kept in one place so
+     * the query plan test checks the query that actually runs
+     */
+    public static class TopEntriesQuery {
+        /**
+         * Both keys descending, so the ascending index is walked backwards.
+         * Older SQLite ignores DESC in an index definition, so a descending
+         * index would not save the sort there.
+         */
+        public static final String ORDER_BY =
+                MEntry.COL_COUNT + " DESC," + MEntry.COL_ID + " DESC";
+        
+        public final String selection;
+        public final String[] selectionArgs;
+        
+        /**
+         * @param type EntryType of the entries
+         * @param after Entry with the count and id the page starts after, or
+         * null for the first page
+         */
+        public TopEntriesQuery(EntryType type, MEntry after) {
+            if (after == null) {
+                selection = MEntry.COL_TYPE + "=?1 AND " + MEntry.COL_OWNED + "=?2";
+                selectionArgs = new String[]{
+                        Integer.toString(type.ordinal()),
+                        Integer.toString(0)
+                };
+                return;
+            }
+            // the <= bound lets the index seek straight to the page
+            selection = MEntry.COL_TYPE + "=?1 AND " + MEntry.COL_OWNED + "=?2 AND " +
+                    MEntry.COL_COUNT + "<=?3 AND (" + MEntry.COL_COUNT + "<?3 OR " +
+                    MEntry.COL_ID + "<?4)";
+            selectionArgs = new String[]{
+                    Integer.toString(type.ordinal()),
+                    Integer.toString(0),
+                    Long.toString(after.count),
+                    Long.toString(after.id)
+            };
+        }
+    }
+    
+    /**
+     * Read entries with the count increments still buffered added in, so
+     * counts are exact without waiting on the writer. Reads again if a
+     * flush ends meanwhile, since the rows may already include it.
+     */
+    private List<MEntry> queryEntries(String selection, String[] selectionArgs,
+            String orderBy, String limit) {
+        SQLiteDatabase db = initializeDatabase();
+        String table = MEntry.TABLE;
+        String groupBy = null, having = null;
+        while (true) {
+            EntryCountBuffer.Unwritten unwritten = sCountBuffer.getUnwritten();
+            Cursor c = db.query(table, STANDARD_FIELDS, selection, selectionArgs,
+                    groupBy, having, orderBy, limit);
+            List<MEntry> entries = new ArrayList<MEntry>();
+            try {
+                while (c.moveToNext()) {
+                    MEntry entry = fillInStandardFields(c);
+                    unwritten.addTo(entry);
+                    entries.add(entry);
+                }
+            } finally {
+                c.close();
+            }
+            if (unwritten.isCurrent()) {
+                return entries;
+            }
+        }
+    }
+    
+    /**
+     * Order entries by count again once buffered increments are added
+     */
+    private static List<MEntry> sortByCount(List<MEntry> entries) {
+        Collections.sort(entries, new Comparator<MEntry>() {
+            @Override
+            public int compare(MEntry a, MEntry b) {
+                return b.count.compareTo(a.count);
+            }
+        });
+        return entries;
+    }
+    
+    private MEntry loadCachedEntry(EntryType type, String name) {
+        SQLiteDatabase db = initializeDatabase();
+        String table = MEntry.TABLE;
+        String selection = MEntry.COL_TYPE + "=? AND " + MEntry.COL_NAME + "=?";
+        String[] selectionArgs = new String[]{ Integer.toString(type.ordinal()), name };
+        String groupBy = null, having = null, orderBy = null;
+        Cursor c = db.query(table, CACHED_FIELDS, selection, selectionArgs, groupBy, having, orderBy);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            MEntry entry = new MEntry();
+            entry.id = c.getLong(0);
+            entry.type = type;
+            entry.name = name;
+            entry.owned = c.getLong(1) == 1;
+            if (!c.isNull(2)) {
+                entry.metadata = c.getString(2);
+            }
+            cacheEntry(entry);
+            return entry;
+        } finally {
+            c.close();
+        }
+    }
+    
+    private static String cacheKey(EntryType type, String name) {
+        return type.ordinal() + ":" + name;
+    }
+    
+    private static MEntry copyCachedFields(MEntry entry) {
+        MEntry copy = new MEntry();
+        copy.id = entry.id;
+        copy.type = entry.type;
+        copy.name = entry.name;
+        copy.owned = entry.owned;
+        copy.metadata = entry.metadata;
+        return copy;
+    }
+    
+    private static void cacheEntry(MEntry entry) {
+        final String key = cacheKey(entry.type, entry.name);
+        sEntryCache.put(key, copyCachedFields(entry));
+        // the row may not outlive the transaction that wrote it
+        TransactionHooks.onRollback(new Runnable() {
+            @Override
+            public void run() {
+                sEntryCache.remove(key);
+            }
+        });
+    }
+    
+    private static void uncacheEntry(final MEntry entry) {
+        removeCachedEntry(entry);
+        // a reader may cache the old row again before the change commits
+        TransactionHooks.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                removeCachedEntry(entry);
+            }
+        });
+    }
+    
+    private static void removeCachedEntry(MEntry entry) {
+        if (entry.type != null && entry.name != null) {
+            sEntryCache.remove(cacheKey(entry.type, entry.name));
+            return;
+        }
+        // only the id is known, so search for it
+        for (Map.Entry<String, MEntry> cached : sEntryCache.snapshot().entrySet()) {
+            if (cached.getValue().id == entry.id) {
+                sEntryCache.remove(cached.getKey());
+            }
+        }
     }
     
     /**
@@ -393,8 +809,8 @@ public class EntryManager extends ManagerBase {
         entry.owned = (c.getLong(owned) == 1) ? true : false;
         entry.count = c.getLong(count);
         entry.followingCount = c.getLong(followingCount);
-        if (!c.isNull(thumbnail)) {
-            entry.thumbnail = c.getBlob(thumbnail);
+        if (!c.isNull(thumbnailHash)) {
+            entry.thumbnailHash = c.getString(thumbnailHash);
         }
         if (!c.isNull(metadata)) {
             entry.metadata = c.getString(metadata);
@@ -407,15 +823,24 @@ public class EntryManager extends ManagerBase {
         if (sqlInsertEntry != null) {
             sqlInsertEntry.close();
         }
-        if (sqlUpdateEntryCount != null) {
-            sqlUpdateEntryCount.close();
-        }
         if (sqlUpdateEntryThumbnail != null) {
             sqlUpdateEntryThumbnail.close();
         }
         if (sqlUpdateEntryOwned != null) {
             sqlUpdateEntryOwned.close();
         }
+        if (sqlUpdateEntryMetadata != null) {
+            sqlUpdateEntryMetadata.close();
+        }
+        if (sqlInsertOrIgnoreEntry != null) {
+            sqlInsertOrIgnoreEntry.close();
+        }
+        if (sqlMergeEntry != null) {
+            sqlMergeEntry.close();
+        }
+        if (sqlGetLatestChangeSequence != null) {
+            sqlGetLatestChangeSequence.close();
+        }
     }
 
 }
@@ -16,13 +16,19 @@ public class FollowerManager extends ManagerBase {
         MFollower.COL_ID,
         MFollower.COL_USER_ID,
         MFollower.COL_TYPE,
-        MFollower.COL_FEED_URI
+        MFollower.COL_FEED_URI,
+        MFollower.COL_FORMAT,
+        MFollower.COL_SYNC_SEQUENCE,
+        MFollower.COL_COMPRESSION
     };
     
     private static final int _id = 0;
     private static final int userId = 1;
     private static final int type = 2;
     private static final int feedUri = 3;
+    private static final int format = 4;
+    private static final int syncSequence = 5;
+    private static final int compression = 6;
     
     private SQLiteStatement sqlInsertFollower;
     private SQLiteStatement sqlUpdateFollower;
@@ -49,8 +55,11 @@ public class FollowerManager extends ManagerBase {
                         .append("(")
                         .append(MFollower.COL_USER_ID).append(",")
                         .append(MFollower.COL_TYPE).append(",")
-                        .append(MFollower.COL_FEED_URI)
-                        .append(") VALUES (?,?,?)");
+                        .append(MFollower.COL_FEED_URI).append(",")
+                        .append(MFollower.COL_FORMAT).append(",")
+                        .append(MFollower.COL_SYNC_SEQUENCE).append(",")
+                        .append(MFollower.COL_COMPRESSION)
+                        .append(") VALUES (?,?,?,?,?,?)");
                     sqlInsertFollower = db.compileStatement(sql.toString());
                 }
             }
@@ -59,6 +68,9 @@ public class FollowerManager extends ManagerBase {
             bindField(sqlInsertFollower, userId, follower.userId);
             bindField(sqlInsertFollower, type, follower.type.ordinal());
             bindField(sqlInsertFollower, feedUri, follower.feedUri);
+            bindField(sqlInsertFollower, format, follower.format);
+            bindField(sqlInsertFollower, syncSequence, follower.syncSequence);
+            bindField(sqlInsertFollower, compression, follower.compression);
             follower.id = sqlInsertFollower.executeInsert();
         }
     }
@@ -77,7 +89,10 @@ public class FollowerManager extends ManagerBase {
                         .append(" SET ")
                         .append(MFollower.COL_USER_ID).append("=?,")
                         .append(MFollower.COL_TYPE).append("=?,")
-                        .append(MFollower.COL_FEED_URI).append("=?")
+                        .append(MFollower.COL_FEED_URI).append("=?,")
+                        .append(MFollower.COL_FORMAT).append("=?,")
+                        .append(MFollower.COL_SYNC_SEQUENCE).append("=?,")
+                        .append(MFollower.COL_COMPRESSION).append("=?")
                         .append(" WHERE ").append(MFollower.COL_ID).append("=?");
                     sqlUpdateFollower = db.compileStatement(sql.toString());
                 }
@@ -87,37 +102,53 @@ public class FollowerManager extends ManagerBase {
             bindField(sqlUpdateFollower, userId, follower.userId);
             bindField(sqlUpdateFollower, type, follower.type.ordinal());
             bindField(sqlUpdateFollower, feedUri, follower.feedUri);
-            bindField(sqlUpdateFollower, 4, follower.id);
+            bindField(sqlUpdateFollower, format, follower.format);
+            bindField(sqlUpdateFollower, syncSequence, follower.syncSequence);
+            bindField(sqlUpdateFollower, compression, follower.compression);
+            bindField(sqlUpdateFollower, 7, follower.id);
             sqlUpdateFollower.executeUpdateDelete();
         }
     }
     
     /**
-     * Get a follower or insert one if none exists.
+     * Get a follower or insert one if none exists. A follower reached
+     * through a new feed starts over with no sync state.
      * @param type EntryType of the follower
      * @param userId String that identifies the follower
      * @param feedUri Uri to reach the follower
+     * @param format Newest entry format the follower can read
+     * @param compression Payload compression the follower can read
      * @return MFollower object
      */
-    public MFollower ensureFollower(EntryType type, String userId, Uri feedUri) {
+    public MFollower ensureFollower(
+            EntryType type, String userId, Uri feedUri, int format, int compression) {
         SQLiteDatabase db = initializeDatabase();
-        db.beginTransaction();
+        TransactionHooks.begin(db);
         try {
             MFollower follower = getFollower(type, userId);
-            if (follower != null && !follower.feedUri.equals(feedUri)) {
+            if (follower != null &&
+                    (!follower.feedUri.equals(feedUri) || follower.format != format ||
+                            follower.compression != compression)) {
+                if (!follower.feedUri.equals(feedUri)) {
+                    follower.syncSequence = 0;
+                }
                 follower.feedUri = feedUri;
+                follower.format = format;
+                follower.compression = compression;
                 updateFollower(follower);
             } else if (follower == null) {
                 follower = new MFollower();
                 follower.type = type;
                 follower.userId = userId;
                 follower.feedUri = feedUri;
+                follower.format = format;
+                follower.compression = compression;
                 insertFollower(follower);
             }
             db.setTransactionSuccessful();
             return follower;
         } finally {
-            db.endTransaction();
+            TransactionHooks.end(db);
         }
     }
     
@@ -180,6 +211,9 @@ public class FollowerManager extends ManagerBase {
         follower.userId = c.getString(userId);
         follower.type = EntryType.values()[(int) c.getLong(type)];
         follower.feedUri = Uri.parse(c.getString(feedUri));
+        follower.format = (int) c.getLong(format);
+        follower.syncSequence = c.getLong(syncSequence);
+        follower.compression = (int) c.getLong(compression);
         return follower;
     }
 
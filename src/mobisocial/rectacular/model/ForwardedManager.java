@@ -0,0 +1,94 @@
+package mobisocial.rectacular.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+public class ForwardedManager extends ManagerBase {
+    private static final int followerId = 1;
+    private static final int entryId = 2;
+    private static final int owner = 3;
+    
+    private SQLiteStatement sqlInsertOrIgnoreForwarded;
+    private SQLiteStatement sqlCountForwarded;
+
+    public ForwardedManager(SQLiteDatabase db) {
+        super(db);
+    }
+    
+    public ForwardedManager(SQLiteOpenHelper databaseSource) {
+        super(databaseSource);
+    }
+    
+    /**
+     * Check whether a follower has been told an entry's owner
+     * @param follower Id of the follower
+     * @param entry Id of the entry
+     * @param entryOwner Owner of the entry
+     * @return true if the follower was told this before
+     */
+    public boolean isForwarded(long follower, long entry, String entryOwner) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlCountForwarded == null) {
+            synchronized(this) {
+                if (sqlCountForwarded == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT COUNT(*) FROM ").append(MForwarded.TABLE)
+                        .append(" WHERE ").append(MForwarded.COL_FOLLOWER_ID).append("=?")
+                        .append(" AND ").append(MForwarded.COL_ENTRY_ID).append("=?")
+                        .append(" AND ").append(MForwarded.COL_OWNER).append("=?");
+                    sqlCountForwarded = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlCountForwarded) {
+            bindField(sqlCountForwarded, followerId, follower);
+            bindField(sqlCountForwarded, entryId, entry);
+            bindField(sqlCountForwarded, owner, entryOwner);
+            return sqlCountForwarded.simpleQueryForLong() > 0;
+        }
+    }
+    
+    /**
+     * Record that a follower was told an entry's owner. Call this once the
+     * post has gone out, so a post that fails can be forwarded again.
+     * @param follower Id of the follower
+     * @param entry Id of the entry
+     * @param entryOwner Owner of the entry
+     * @return true if the follower was not told this before
+     */
+    public boolean markForwarded(long follower, long entry, String entryOwner) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlInsertOrIgnoreForwarded == null) {
+            synchronized(this) {
+                if (sqlInsertOrIgnoreForwarded == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR IGNORE INTO ").append(MForwarded.TABLE)
+                        .append("(")
+                        .append(MForwarded.COL_FOLLOWER_ID).append(",")
+                        .append(MForwarded.COL_ENTRY_ID).append(",")
+                        .append(MForwarded.COL_OWNER)
+                        .append(") VALUES (?,?,?)");
+                    sqlInsertOrIgnoreForwarded = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlInsertOrIgnoreForwarded) {
+            bindField(sqlInsertOrIgnoreForwarded, followerId, follower);
+            bindField(sqlInsertOrIgnoreForwarded, entryId, entry);
+            bindField(sqlInsertOrIgnoreForwarded, owner, entryOwner);
+            return sqlInsertOrIgnoreForwarded.executeInsert() != -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sqlInsertOrIgnoreForwarded != null) {
+            sqlInsertOrIgnoreForwarded.close();
+        }
+        if (sqlCountForwarded != null) {
+            sqlCountForwarded.close();
+        }
+    }
+
+}
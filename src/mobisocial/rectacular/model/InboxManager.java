@@ -0,0 +1,193 @@
+package mobisocial.rectacular.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+
+public class InboxManager extends ManagerBase {
+    private static final String[] STANDARD_FIELDS = new String[] {
+        MInboxItem.COL_ID,
+        MInboxItem.COL_OBJ_URI,
+        MInboxItem.COL_RECEIVED,
+        MInboxItem.COL_ATTEMPTS,
+        MInboxItem.COL_RETRY_AFTER
+    };
+    
+    private static final int _id = 0;
+    private static final int objUri = 1;
+    private static final int received = 2;
+    private static final int attempts = 3;
+    private static final int retryAfter = 4;
+    
+    private SQLiteStatement sqlInsertItem;
+    private SQLiteStatement sqlDeleteItem;
+    private SQLiteStatement sqlUpdateAttempts;
+    private SQLiteStatement sqlNextRetry;
+
+    public InboxManager(SQLiteDatabase db) {
+        super(db);
+    }
+    
+    public InboxManager(SQLiteOpenHelper databaseSource) {
+        super(databaseSource);
+    }
+    
+    /**
+     * Append an obj to the inbox
+     * @param item MInboxItem with an obj uri and receive time
+     */
+    public void insertItem(MInboxItem item) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlInsertItem == null) {
+            synchronized(this) {
+                if (sqlInsertItem == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT INTO ").append(MInboxItem.TABLE)
+                        .append("(")
+                        .append(MInboxItem.COL_OBJ_URI).append(",")
+                        .append(MInboxItem.COL_RECEIVED)
+                        .append(") VALUES (?,?)");
+                    sqlInsertItem = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlInsertItem) {
+            bindField(sqlInsertItem, objUri, item.objUri);
+            bindField(sqlInsertItem, received, item.received);
+            item.id = sqlInsertItem.executeInsert();
+        }
+    }
+    
+    /**
+     * Remove an obj once it has been handled
+     * @param id MInboxItem id
+     */
+    public void deleteItem(long id) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlDeleteItem == null) {
+            synchronized(this) {
+                if (sqlDeleteItem == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("DELETE FROM ").append(MInboxItem.TABLE)
+                        .append(" WHERE ").append(MInboxItem.COL_ID).append("=?");
+                    sqlDeleteItem = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlDeleteItem) {
+            bindField(sqlDeleteItem, 1, id);
+            sqlDeleteItem.executeUpdateDelete();
+        }
+    }
+    
+    /**
+     * Record a failed attempt to process an obj
+     * @param item MInboxItem with its attempt count and retry time updated
+     */
+    public void updateAttempts(MInboxItem item) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlUpdateAttempts == null) {
+            synchronized(this) {
+                if (sqlUpdateAttempts == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("UPDATE ").append(MInboxItem.TABLE)
+                        .append(" SET ")
+                        .append(MInboxItem.COL_ATTEMPTS).append("=?,")
+                        .append(MInboxItem.COL_RETRY_AFTER).append("=?")
+                        .append(" WHERE ").append(MInboxItem.COL_ID).append("=?");
+                    sqlUpdateAttempts = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlUpdateAttempts) {
+            bindField(sqlUpdateAttempts, 1, item.attempts);
+            bindField(sqlUpdateAttempts, 2, item.retryAfter);
+            bindField(sqlUpdateAttempts, 3, item.id);
+            sqlUpdateAttempts.executeUpdateDelete();
+        }
+    }
+    
+    /**
+     * Get the time the next postponed obj may be tried again
+     * @param now Current time in milliseconds
+     * @return Retry time, or 0 if nothing is waiting past now
+     */
+    public long getNextRetry(long now) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlNextRetry == null) {
+            synchronized(this) {
+                if (sqlNextRetry == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT IFNULL(MIN(").append(MInboxItem.COL_RETRY_AFTER).append("),0)")
+                        .append(" FROM ").append(MInboxItem.TABLE)
+                        .append(" WHERE ").append(MInboxItem.COL_RETRY_AFTER).append(">?");
+                    sqlNextRetry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlNextRetry) {
+            bindField(sqlNextRetry, 1, now);
+            return sqlNextRetry.simpleQueryForLong();
+        }
+    }
+    
+    /**
+     * Get the oldest objs in the inbox that are due, in order of arrival.
+     * Objs postponed after a failure are left out until their retry time.
+     * @param lim Maximum number to return
+     * @param now Current time in milliseconds
+     * @return List of MInboxItem objects
+     */
+    public List<MInboxItem> getItems(long lim, long now) {
+        SQLiteDatabase db = initializeDatabase();
+        String table = MInboxItem.TABLE;
+        String[] columns = STANDARD_FIELDS;
+        String selection = MInboxItem.COL_RETRY_AFTER + "<=?";
+        String[] selectionArgs = new String[] { Long.toString(now) };
+        String groupBy = null, having = null;
+        String orderBy = MInboxItem.COL_ID + " ASC";
+        String limit = Long.toString(lim);
+        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        try {
+            List<MInboxItem> items = new ArrayList<MInboxItem>();
+            while (c.moveToNext()) {
+                items.add(fillInStandardFields(c));
+            }
+            return items;
+        } finally {
+            c.close();
+        }
+    }
+    
+    private MInboxItem fillInStandardFields(Cursor c) {
+        MInboxItem item = new MInboxItem();
+        item.id = c.getLong(_id);
+        item.objUri = Uri.parse(c.getString(objUri));
+        item.received = c.getLong(received);
+        item.attempts = c.getInt(attempts);
+        item.retryAfter = c.getLong(retryAfter);
+        return item;
+    }
+
+    @Override
+    public void close() {
+        if (sqlInsertItem != null) {
+            sqlInsertItem.close();
+        }
+        if (sqlDeleteItem != null) {
+            sqlDeleteItem.close();
+        }
+        if (sqlUpdateAttempts != null) {
+            sqlUpdateAttempts.close();
+        }
+        if (sqlNextRetry != null) {
+            sqlNextRetry.close();
+        }
+    }
+
+}
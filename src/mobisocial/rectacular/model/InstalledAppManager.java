@@ -0,0 +1,160 @@
+package mobisocial.rectacular.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+public class InstalledAppManager extends ManagerBase {
+    private static final String[] STANDARD_FIELDS = new String[] {
+        MInstalledApp.COL_ID,
+        MInstalledApp.COL_PACKAGE_NAME,
+        MInstalledApp.COL_LAST_UPDATE,
+        MInstalledApp.COL_LABEL_HASH,
+        MInstalledApp.COL_ENTRY_ID
+    };
+    
+    private static final int _id = 0;
+    private static final int packageName = 1;
+    private static final int lastUpdate = 2;
+    private static final int labelHash = 3;
+    private static final int entryId = 4;
+    
+    private SQLiteStatement sqlSaveInstalledApp;
+    private SQLiteStatement sqlDeleteInstalledApp;
+    private SQLiteStatement sqlCountForEntry;
+
+    public InstalledAppManager(SQLiteDatabase db) {
+        super(db);
+    }
+    
+    public InstalledAppManager(SQLiteOpenHelper databaseSource) {
+        super(databaseSource);
+    }
+    
+    /**
+     * Record the current state of a package, replacing any earlier snapshot
+     * @param app MInstalledApp object with all details filled
+     */
+    public void saveInstalledApp(MInstalledApp app) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlSaveInstalledApp == null) {
+            synchronized(this) {
+                if (sqlSaveInstalledApp == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR REPLACE INTO ").append(MInstalledApp.TABLE)
+                        .append("(")
+                        .append(MInstalledApp.COL_PACKAGE_NAME).append(",")
+                        .append(MInstalledApp.COL_LAST_UPDATE).append(",")
+                        .append(MInstalledApp.COL_LABEL_HASH).append(",")
+                        .append(MInstalledApp.COL_ENTRY_ID)
+                        .append(") VALUES (?,?,?,?)");
+                    sqlSaveInstalledApp = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlSaveInstalledApp) {
+            bindField(sqlSaveInstalledApp, packageName, app.packageName);
+            bindField(sqlSaveInstalledApp, lastUpdate, app.lastUpdate);
+            bindField(sqlSaveInstalledApp, labelHash, app.labelHash);
+            bindField(sqlSaveInstalledApp, entryId, app.entryId);
+            app.id = sqlSaveInstalledApp.executeInsert();
+        }
+    }
+    
+    /**
+     * Forget a package that is no longer installed
+     * @param name Package name of the app
+     */
+    public void deleteInstalledApp(String name) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlDeleteInstalledApp == null) {
+            synchronized(this) {
+                if (sqlDeleteInstalledApp == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("DELETE FROM ").append(MInstalledApp.TABLE)
+                        .append(" WHERE ").append(MInstalledApp.COL_PACKAGE_NAME).append("=?");
+                    sqlDeleteInstalledApp = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlDeleteInstalledApp) {
+            bindField(sqlDeleteInstalledApp, 1, name);
+            sqlDeleteInstalledApp.executeUpdateDelete();
+        }
+    }
+    
+    /**
+     * Determine if any installed package still maps to an entry
+     * @param id MEntry id
+     * @return true if at least one package has this entry, false otherwise
+     */
+    public boolean hasEntry(long id) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlCountForEntry == null) {
+            synchronized(this) {
+                if (sqlCountForEntry == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT COUNT(*) FROM ").append(MInstalledApp.TABLE)
+                        .append(" WHERE ").append(MInstalledApp.COL_ENTRY_ID).append("=?");
+                    sqlCountForEntry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlCountForEntry) {
+            bindField(sqlCountForEntry, 1, id);
+            return sqlCountForEntry.simpleQueryForLong() > 0;
+        }
+    }
+    
+    /**
+     * Get the snapshot of every package seen in the last scan
+     * @return Map of package name to MInstalledApp object
+     */
+    public Map<String, MInstalledApp> getInstalledApps() {
+        SQLiteDatabase db = initializeDatabase();
+        String table = MInstalledApp.TABLE;
+        String[] columns = STANDARD_FIELDS;
+        String selection = null;
+        String[] selectionArgs = null;
+        String groupBy = null, having = null, orderBy = null;
+        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+        try {
+            Map<String, MInstalledApp> apps = new HashMap<String, MInstalledApp>();
+            while (c.moveToNext()) {
+                MInstalledApp app = fillInStandardFields(c);
+                apps.put(app.packageName, app);
+            }
+            return apps;
+        } finally {
+            c.close();
+        }
+    }
+    
+    private MInstalledApp fillInStandardFields(Cursor c) {
+        MInstalledApp app = new MInstalledApp();
+        app.id = c.getLong(_id);
+        app.packageName = c.getString(packageName);
+        app.lastUpdate = c.getLong(lastUpdate);
+        app.labelHash = c.getInt(labelHash);
+        app.entryId = c.getLong(entryId);
+        return app;
+    }
+
+    @Override
+    public void close() {
+        if (sqlSaveInstalledApp != null) {
+            sqlSaveInstalledApp.close();
+        }
+        if (sqlDeleteInstalledApp != null) {
+            sqlDeleteInstalledApp.close();
+        }
+        if (sqlCountForEntry != null) {
+            sqlCountForEntry.close();
+        }
+    }
+
+}
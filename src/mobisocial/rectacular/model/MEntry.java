@@ -38,22 +38,34 @@ public class MEntry {
     public static final String COL_FOLLOWING_COUNT = "ent_following_count";
     
     /**
-     * Optional thumbnail
+     * Inline thumbnail from before thumbnails were stored by hash; only read
+     * when upgrading
      */
     public static final String COL_THUMBNAIL = "thumbnail";
     
+    /**
+     * Optional hash of the thumbnail in {@link MThumbnail}
+     */
+    public static final String COL_THUMBNAIL_HASH = "thumbnail_hash";
+    
     /**
      * Optional metadata
      */
     public static final String COL_METADATA = "metadata";
     
+    /**
+     * Sequence number of the last change to the entry, so followers can be
+     * sent only what changed since they were last answered
+     */
+    public static final String COL_CHANGE_SEQUENCE = "change_seq";
+    
     public long id;
     public EntryType type;
     public String name;
     public Boolean owned;
     public Long count;
     public Long followingCount;
-    public byte[] thumbnail;
+    public String thumbnailHash;
     public String metadata;
     
     public enum EntryType {
@@ -30,8 +30,29 @@ public class MFollower {
      */
     public static final String COL_FEED_URI = "feed_uri";
     
+    /**
+     * Newest entry format the follower can read (0 for JSON only)
+     */
+    public static final String COL_FORMAT = "format";
+    
+    /**
+     * Newest user entry id already sent to the follower (0 if none)
+     */
+    public static final String COL_SYNC_SEQUENCE = "sync_sequence";
+    
+    /**
+     * Payload compression the follower can read
+     */
+    public static final String COL_COMPRESSION = "compression";
+    
+    public static final int COMPRESSION_NONE = 0;
+    public static final int COMPRESSION_DEFLATE = 1;
+    
     public long id;
     public String userId;
     public EntryType type;
     public Uri feedUri;
+    public int format;
+    public long syncSequence;
+    public int compression;
 }
@@ -0,0 +1,33 @@
+package mobisocial.rectacular.model;
+
+/**
+ * Ledger of entry owners already forwarded to each follower
+ */
+public class MForwarded {
+    public static final String TABLE = "forwarded";
+
+    /**
+     * Primary identifier
+     */
+    public static final String COL_ID = "_id";
+
+    /**
+     * Follower the fact was forwarded to
+     */
+    public static final String COL_FOLLOWER_ID = "follower_id";
+
+    /**
+     * Entry the fact is about
+     */
+    public static final String COL_ENTRY_ID = "entry_id";
+
+    /**
+     * Owner of the entry
+     */
+    public static final String COL_OWNER = "owner";
+
+    public long id;
+    public long followerId;
+    public long entryId;
+    public String owner;
+}
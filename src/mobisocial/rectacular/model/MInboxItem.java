@@ -0,0 +1,41 @@
+package mobisocial.rectacular.model;
+
+import android.net.Uri;
+
+/**
+ * Incoming Musubi objects and newly installed apps waiting to be processed
+ */
+public class MInboxItem {
+    public static final String TABLE = "inbox";
+    
+    /**
+     * Primary identifier, also the order of arrival
+     */
+    public static final String COL_ID = "_id";
+    
+    /**
+     * Uri of the received obj, or package uri of an installed app
+     */
+    public static final String COL_OBJ_URI = "obj_uri";
+    
+    /**
+     * Time the obj was received
+     */
+    public static final String COL_RECEIVED = "received";
+    
+    /**
+     * Number of times processing the obj failed
+     */
+    public static final String COL_ATTEMPTS = "attempts";
+    
+    /**
+     * Time before which a failed obj is not tried again
+     */
+    public static final String COL_RETRY_AFTER = "retry_after";
+    
+    public long id;
+    public Uri objUri;
+    public Long received;
+    public int attempts;
+    public long retryAfter;
+}
@@ -0,0 +1,39 @@
+package mobisocial.rectacular.model;
+
+/**
+ * Snapshot of an installed package as of the last app scan
+ */
+public class MInstalledApp {
+    public static final String TABLE = "installed_apps";
+    
+    /**
+     * Primary identifier
+     */
+    public static final String COL_ID = "_id";
+    
+    /**
+     * Package name of the app
+     */
+    public static final String COL_PACKAGE_NAME = "package_name";
+    
+    /**
+     * Last time the package was installed or updated
+     */
+    public static final String COL_LAST_UPDATE = "last_update";
+    
+    /**
+     * Hash of the app label that was saved
+     */
+    public static final String COL_LABEL_HASH = "label_hash";
+    
+    /**
+     * Entry identifier for the app label
+     */
+    public static final String COL_ENTRY_ID = "entry_id";
+    
+    public long id;
+    public String packageName;
+    public Long lastUpdate;
+    public Integer labelHash;
+    public Long entryId;
+}
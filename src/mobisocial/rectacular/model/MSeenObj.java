@@ -0,0 +1,27 @@
+package mobisocial.rectacular.model;
+
+/**
+ * Musubi objects that have already been handled, to drop redeliveries
+ */
+public class MSeenObj {
+    public static final String TABLE = "seen_objs";
+    
+    /**
+     * Primary identifier
+     */
+    public static final String COL_ID = "_id";
+    
+    /**
+     * Universal hash of the obj
+     */
+    public static final String COL_UNIVERSAL_HASH = "universal_hash";
+    
+    /**
+     * Time the obj was first handled
+     */
+    public static final String COL_SEEN = "seen";
+    
+    public long id;
+    public String universalHash;
+    public Long seen;
+}
@@ -0,0 +1,27 @@
+package mobisocial.rectacular.model;
+
+/**
+ * Thumbnail images stored once per distinct content
+ */
+public class MThumbnail {
+    public static final String TABLE = "thumbnails";
+
+    /**
+     * Primary identifier
+     */
+    public static final String COL_ID = "_id";
+
+    /**
+     * Hex SHA-1 of the image data
+     */
+    public static final String COL_HASH = "hash";
+
+    /**
+     * Encoded image data
+     */
+    public static final String COL_DATA = "data";
+
+    public long id;
+    public String hash;
+    public byte[] data;
+}
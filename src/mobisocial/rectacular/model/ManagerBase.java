@@ -22,6 +22,11 @@ import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
 public abstract class ManagerBase {
+    /**
+     * Maximum number of arguments SQLite will bind to a single statement
+     */
+    static final int MAX_SQL_ARGS = 999;
+    
     final SQLiteOpenHelper mDatabase;
     final SQLiteDatabase mDirectDatabase;
 
@@ -66,13 +71,25 @@ public abstract class ManagerBase {
         }
     }
 
+    /**
+     * Build a comma-separated list of bind placeholders, e.g. for IN clauses
+     * @param count Number of placeholders
+     * @return String of the form "?,?,?"
+     */
+    String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append("?");
+        }
+        return sb.toString();
+    }
+
     /**
      * Closes any compiled statements and other database resources opened by this manager.
+     * The shared managers in {@link ManagerRegistry} live for the whole process.
      */
     public abstract void close();
-
-    @Override
-    protected void finalize() throws Throwable {
-        close();
-    }
 }
\ No newline at end of file
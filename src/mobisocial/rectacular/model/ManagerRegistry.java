@@ -0,0 +1,74 @@
+package mobisocial.rectacular.model;
+
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * One instance of each manager, so compiled statements are shared by every
+ * caller instead of being rebuilt per message. The managers live for the
+ * whole process and are never closed; their statements go with it.
+ */
+public class ManagerRegistry {
+    private final EntryManager mEntryManager;
+    private final UserEntryManager mUserEntryManager;
+    private final FeedManager mFeedManager;
+    private final FollowerManager mFollowerManager;
+    private final FollowingManager mFollowingManager;
+    private final InstalledAppManager mInstalledAppManager;
+    private final InboxManager mInboxManager;
+    private final ThumbnailManager mThumbnailManager;
+    private final SeenObjManager mSeenObjManager;
+    private final ForwardedManager mForwardedManager;
+
+    public ManagerRegistry(SQLiteOpenHelper databaseSource) {
+        mEntryManager = new EntryManager(databaseSource);
+        mUserEntryManager = new UserEntryManager(databaseSource);
+        mFeedManager = new FeedManager(databaseSource);
+        mFollowerManager = new FollowerManager(databaseSource);
+        mFollowingManager = new FollowingManager(databaseSource);
+        mInstalledAppManager = new InstalledAppManager(databaseSource);
+        mInboxManager = new InboxManager(databaseSource);
+        mThumbnailManager = new ThumbnailManager(databaseSource);
+        mSeenObjManager = new SeenObjManager(databaseSource);
+        mForwardedManager = new ForwardedManager(databaseSource);
+    }
+
+    public EntryManager getEntryManager() {
+        return mEntryManager;
+    }
+
+    public UserEntryManager getUserEntryManager() {
+        return mUserEntryManager;
+    }
+
+    public FeedManager getFeedManager() {
+        return mFeedManager;
+    }
+
+    public FollowerManager getFollowerManager() {
+        return mFollowerManager;
+    }
+
+    public FollowingManager getFollowingManager() {
+        return mFollowingManager;
+    }
+
+    public InstalledAppManager getInstalledAppManager() {
+        return mInstalledAppManager;
+    }
+
+    public InboxManager getInboxManager() {
+        return mInboxManager;
+    }
+
+    public ThumbnailManager getThumbnailManager() {
+        return mThumbnailManager;
+    }
+
+    public SeenObjManager getSeenObjManager() {
+        return mSeenObjManager;
+    }
+
+    public ForwardedManager getForwardedManager() {
+        return mForwardedManager;
+    }
+}
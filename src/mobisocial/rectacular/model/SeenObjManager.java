@@ -0,0 +1,102 @@
+package mobisocial.rectacular.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.LruCache;
+
+public class SeenObjManager extends ManagerBase {
+    private static final int universalHash = 1;
+    private static final int seen = 2;
+    
+    private static final int CACHE_SIZE = 1024;
+    
+    /**
+     * Hashes recently found in or committed to the table, so repeats skip
+     * the database entirely
+     */
+    private final LruCache<String, Boolean> mRecent = new LruCache<String, Boolean>(CACHE_SIZE);
+    
+    private SQLiteStatement sqlInsertOrIgnoreSeen;
+    private SQLiteStatement sqlDeleteSeenBefore;
+
+    public SeenObjManager(SQLiteDatabase db) {
+        super(db);
+    }
+    
+    public SeenObjManager(SQLiteOpenHelper databaseSource) {
+        super(databaseSource);
+    }
+    
+    /**
+     * Record that an obj is being handled. Inside a transaction the hash
+     * only joins the in-memory filter once the transaction commits.
+     * @param hash Universal hash of the obj
+     * @return true if the obj was not seen before
+     */
+    public boolean markSeen(final String hash) {
+        if (mRecent.get(hash) != null) {
+            return false;
+        }
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlInsertOrIgnoreSeen == null) {
+            synchronized(this) {
+                if (sqlInsertOrIgnoreSeen == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR IGNORE INTO ").append(MSeenObj.TABLE)
+                        .append("(")
+                        .append(MSeenObj.COL_UNIVERSAL_HASH).append(",")
+                        .append(MSeenObj.COL_SEEN)
+                        .append(") VALUES (?,?)");
+                    sqlInsertOrIgnoreSeen = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        long id;
+        synchronized(sqlInsertOrIgnoreSeen) {
+            bindField(sqlInsertOrIgnoreSeen, universalHash, hash);
+            bindField(sqlInsertOrIgnoreSeen, seen, System.currentTimeMillis());
+            id = sqlInsertOrIgnoreSeen.executeInsert();
+        }
+        TransactionHooks.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                mRecent.put(hash, Boolean.TRUE);
+            }
+        });
+        return id != -1;
+    }
+    
+    /**
+     * Remove records of objs handled long ago
+     * @param time Records older than this are removed
+     */
+    public void deleteSeenBefore(long time) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlDeleteSeenBefore == null) {
+            synchronized(this) {
+                if (sqlDeleteSeenBefore == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("DELETE FROM ").append(MSeenObj.TABLE)
+                        .append(" WHERE ").append(MSeenObj.COL_SEEN).append("<?");
+                    sqlDeleteSeenBefore = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlDeleteSeenBefore) {
+            bindField(sqlDeleteSeenBefore, 1, time);
+            sqlDeleteSeenBefore.executeUpdateDelete();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sqlInsertOrIgnoreSeen != null) {
+            sqlInsertOrIgnoreSeen.close();
+        }
+        if (sqlDeleteSeenBefore != null) {
+            sqlDeleteSeenBefore.close();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package mobisocial.rectacular.model;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+public class ThumbnailManager extends ManagerBase {
+    private static final String[] DATA_FIELDS = new String[] {
+        MThumbnail.COL_DATA
+    };
+
+    private static final int hash = 1;
+    private static final int data = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private SQLiteStatement sqlInsertOrIgnoreThumbnail;
+    private SQLiteStatement sqlCountForHash;
+
+    public ThumbnailManager(SQLiteDatabase db) {
+        super(db);
+    }
+
+    public ThumbnailManager(SQLiteOpenHelper databaseSource) {
+        super(databaseSource);
+    }
+
+    /**
+     * Compute the content hash that identifies a thumbnail
+     * @param data Encoded image data
+     * @return Hex SHA-1 of the data
+     */
+    public static String hashOf(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-1 is always present
+        }
+    }
+
+    /**
+     * Store a thumbnail unless identical data is already stored
+     * @param thumbnail Encoded image data
+     * @return Hash that identifies the thumbnail
+     */
+    public String saveThumbnail(byte[] thumbnail) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlInsertOrIgnoreThumbnail == null) {
+            synchronized(this) {
+                if (sqlInsertOrIgnoreThumbnail == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR IGNORE INTO ").append(MThumbnail.TABLE)
+                        .append("(")
+                        .append(MThumbnail.COL_HASH).append(",")
+                        .append(MThumbnail.COL_DATA)
+                        .append(") VALUES (?,?)");
+                    sqlInsertOrIgnoreThumbnail = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        String thumbnailHash = hashOf(thumbnail);
+        synchronized(sqlInsertOrIgnoreThumbnail) {
+            bindField(sqlInsertOrIgnoreThumbnail, hash, thumbnailHash);
+            bindField(sqlInsertOrIgnoreThumbnail, data, thumbnail);
+            sqlInsertOrIgnoreThumbnail.executeInsert();
+        }
+        return thumbnailHash;
+    }
+
+    /**
+     * Check whether a thumbnail is stored
+     * @param thumbnailHash Hash of the thumbnail
+     * @return true if the thumbnail data is available
+     */
+    public boolean hasThumbnail(String thumbnailHash) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlCountForHash == null) {
+            synchronized(this) {
+                if (sqlCountForHash == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT COUNT(*) FROM ").append(MThumbnail.TABLE)
+                        .append(" WHERE ").append(MThumbnail.COL_HASH).append("=?");
+                    sqlCountForHash = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlCountForHash) {
+            bindField(sqlCountForHash, 1, thumbnailHash);
+            return sqlCountForHash.simpleQueryForLong() > 0;
+        }
+    }
+
+    /**
+     * Get the data for a thumbnail
+     * @param thumbnailHash Hash of the thumbnail
+     * @return Encoded image data, or null if not stored
+     */
+    public byte[] getThumbnail(String thumbnailHash) {
+        SQLiteDatabase db = initializeDatabase();
+        String table = MThumbnail.TABLE;
+        String[] columns = DATA_FIELDS;
+        String selection = MThumbnail.COL_HASH + "=?";
+        String[] selectionArgs = new String[] { thumbnailHash };
+        String groupBy = null, having = null, orderBy = null;
+        Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+        try {
+            if (c.moveToFirst()) {
+                return c.getBlob(0);
+            } else {
+                return null;
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sqlInsertOrIgnoreThumbnail != null) {
+            sqlInsertOrIgnoreThumbnail.close();
+        }
+        if (sqlCountForHash != null) {
+            sqlCountForHash.close();
+        }
+    }
+
+}
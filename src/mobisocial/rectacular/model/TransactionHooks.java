@@ -0,0 +1,128 @@
+package mobisocial.rectacular.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.util.Log;
+
+/**
+ * Ties in-memory state and outside effects to the fate of the database
+ * transaction they belong to. Transactions are started and ended through
+ * {@link #begin(SQLiteDatabase)} and {@link #end(SQLiteDatabase)}; work
+ * registered while one is open on the calling thread runs once the
+ * outermost transaction has committed or rolled back.
+ */
+public class TransactionHooks {
+    private static final String TAG = "TransactionHooks";
+
+    private static final ThreadLocal<Scope> sScope = new ThreadLocal<Scope>();
+
+    /**
+     * The outermost transaction on a thread and the work waiting on it
+     */
+    private static class Scope implements SQLiteTransactionListener {
+        int depth = 1;
+        boolean committing;
+        final List<Runnable> onCommit = new ArrayList<Runnable>();
+        final List<Runnable> onRollback = new ArrayList<Runnable>();
+
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+            // called before the commit, which can still fail; see end()
+            committing = true;
+        }
+
+        @Override
+        public void onRollback() {
+            committing = false;
+        }
+    }
+
+    /**
+     * Begin a transaction, nested in the current one if there is one
+     * @param db Database to begin the transaction on
+     */
+    public static void begin(SQLiteDatabase db) {
+        Scope scope = sScope.get();
+        if (scope != null) {
+            db.beginTransaction();
+            scope.depth++;
+            return;
+        }
+        scope = new Scope();
+        db.beginTransactionWithListener(scope);
+        sScope.set(scope);
+    }
+
+    /**
+     * End a transaction started with {@link #begin(SQLiteDatabase)}. Ending
+     * the outermost one runs the work registered for its outcome.
+     * @param db Database the transaction was begun on
+     */
+    public static void end(SQLiteDatabase db) {
+        Scope scope = sScope.get();
+        if (scope == null || --scope.depth > 0) {
+            db.endTransaction();
+            return;
+        }
+        sScope.remove();
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            // a failed commit throws here and runs the rollback work
+            committed = scope.committing;
+        } finally {
+            run(committed ? scope.onCommit : scope.onRollback);
+        }
+    }
+
+    /**
+     * @return true if a transaction begun here is open on this thread
+     */
+    public static boolean inTransaction() {
+        return sScope.get() != null;
+    }
+
+    /**
+     * Run work once the current transaction commits, or right away if
+     * there is none
+     * @param task Work to run
+     */
+    public static void onCommit(Runnable task) {
+        Scope scope = sScope.get();
+        if (scope != null) {
+            scope.onCommit.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Run work if the current transaction rolls back. Without a
+     * transaction there is nothing to roll back and the work is dropped.
+     * @param task Work to run
+     */
+    public static void onRollback(Runnable task) {
+        Scope scope = sScope.get();
+        if (scope != null) {
+            scope.onRollback.add(task);
+        }
+    }
+
+    private static void run(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // the transaction is over; later tasks must still run
+                Log.e(TAG, "transaction hook failed", e);
+            }
+        }
+    }
+}
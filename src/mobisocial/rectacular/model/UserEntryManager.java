@@ -1,7 +1,13 @@
 package mobisocial.rectacular.model;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import mobisocial.rectacular.model.MEntry.EntryType;
 import android.database.Cursor;
@@ -21,6 +27,9 @@ public class UserEntryManager extends ManagerBase {
     private static final int userId = 2;
     
     private SQLiteStatement sqlInsertUserEntry;
+    private SQLiteStatement sqlInsertOrIgnoreUserEntry;
+    private SQLiteStatement sqlDeleteUserEntry;
+    private SQLiteStatement sqlHasUserEntries;
     
     public UserEntryManager(SQLiteDatabase db) {
         super(db);
@@ -56,30 +65,61 @@ public class UserEntryManager extends ManagerBase {
         }
     }
     
+    /**
+     * Insert a user-entry pair unless the pair is already known
+     * @param userEntry A valid user-entry pair
+     * @return true if a new row was inserted, false if the pair existed
+     */
+    public boolean insertUserEntryIfAbsent(MUserEntry userEntry) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlInsertOrIgnoreUserEntry == null) {
+            synchronized(this) {
+                if (sqlInsertOrIgnoreUserEntry == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("INSERT OR IGNORE INTO ").append(MUserEntry.TABLE)
+                        .append("(")
+                        .append(MUserEntry.COL_ENTRY_ID).append(",")
+                        .append(MUserEntry.COL_USER_ID)
+                        .append(") VALUES (?,?)");
+                    sqlInsertOrIgnoreUserEntry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlInsertOrIgnoreUserEntry) {
+            bindField(sqlInsertOrIgnoreUserEntry, entryId, userEntry.entryId);
+            bindField(sqlInsertOrIgnoreUserEntry, userId, userEntry.userId);
+            long id = sqlInsertOrIgnoreUserEntry.executeInsert();
+            if (id == -1) {
+                return false;
+            }
+            userEntry.id = id;
+            return true;
+        }
+    }
+    
     /**
      * Insert a user entry if one does not already exist
      * @param em EntryManager for updating state
      * @param entryId long identifying an MEntry
      * @param userId String identifying a user
      * @param isFollowing Whether or not this user is someone followed
-     * @return MUserEntry object
+     * @return true if the user entry was new, false otherwise
      */
-    public MUserEntry ensureUserEntry(EntryManager em, long entryId, String userId, boolean isFollowing) {
+    public boolean ensureUserEntry(EntryManager em, long entryId, String userId, boolean isFollowing) {
         SQLiteDatabase db = initializeDatabase();
-        db.beginTransaction();
+        TransactionHooks.begin(db);
         try {
-            MUserEntry userEntry = getUserEntry(entryId, userId);
-            if (userEntry == null) {
-                userEntry = new MUserEntry();
-                userEntry.entryId = entryId;
-                userEntry.userId = userId;
-                insertUserEntry(userEntry);
+            MUserEntry userEntry = new MUserEntry();
+            userEntry.entryId = entryId;
+            userEntry.userId = userId;
+            boolean inserted = insertUserEntryIfAbsent(userEntry);
+            if (inserted) {
                 em.updateCount(entryId, true, isFollowing);
             }
             db.setTransactionSuccessful();
-            return userEntry;
+            return inserted;
         } finally {
-            db.endTransaction();
+            TransactionHooks.end(db);
         }
     }
     
@@ -92,13 +132,85 @@ public class UserEntryManager extends ManagerBase {
      * @param setOwned Whether or not this entry should be set as owned
      * @param userId String identifier of the user
      * @param isFollowing Whether or not this user is someone followed
-     * @return MUserEntry object
+     * @return true if the user entry was new, false otherwise
      */
-    public MUserEntry ensureUserEntry(
+    public boolean ensureUserEntry(
             EntryManager em, EntryType type, String name, String metadata,
             boolean setOwned, String userId, boolean isFollowing) {
-        MEntry entry = em.ensureEntry(type, name, metadata, false, false, setOwned);
-        return ensureUserEntry(em, entry.id, userId, isFollowing);
+        long entryId = em.ensureEntry(type, name, metadata, false, false, setOwned);
+        return ensureUserEntry(em, entryId, userId, isFollowing);
+    }
+    
+    /**
+     * Insert entries and user entries for a whole batch in one transaction.
+     * Every entry is paired with every user.
+     * @param em EntryManager for updating state
+     * @param type EntryType of the entries
+     * @param entries MEntry objects with a name and optional metadata
+     * @param setOwned Whether or not the entries should be set as owned
+     * @param userIds String identifiers of the users
+     * @param isFollowing Whether or not these users are followed
+     * @return Map of entry name to the stored MEntry object
+     */
+    public Map<String, MEntry> ensureUserEntries(
+            EntryManager em, EntryType type, Collection<MEntry> entries,
+            boolean setOwned, Collection<String> userIds, boolean isFollowing) {
+        SQLiteDatabase db = initializeDatabase();
+        TransactionHooks.begin(db);
+        try {
+            Map<String, MEntry> dbEntries = em.ensureEntries(type, entries, setOwned);
+            List<Long> entryIds = new ArrayList<Long>(dbEntries.size());
+            for (MEntry entry : dbEntries.values()) {
+                entryIds.add(entry.id);
+            }
+            for (String user : userIds) {
+                for (Long id : entryIds) {
+                    MUserEntry userEntry = new MUserEntry();
+                    userEntry.entryId = id;
+                    userEntry.userId = user;
+                    if (insertUserEntryIfAbsent(userEntry)) {
+                        em.updateCount(id, true, isFollowing);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+            return dbEntries;
+        } finally {
+            TransactionHooks.end(db);
+        }
+    }
+    
+    /**
+     * Remove a user-entry pair if it exists
+     * @param em EntryManager for updating state
+     * @param entryId long identifying an MEntry
+     * @param userId String identifying a user
+     * @param isFollowing Whether or not this user is someone followed
+     * @return true if the user entry was removed, false if there was none
+     */
+    public boolean deleteUserEntry(EntryManager em, long entryId, String userId, boolean isFollowing) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlDeleteUserEntry == null) {
+            synchronized(this) {
+                if (sqlDeleteUserEntry == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("DELETE FROM ").append(MUserEntry.TABLE)
+                        .append(" WHERE ").append(MUserEntry.COL_ENTRY_ID).append("=?")
+                        .append(" AND ").append(MUserEntry.COL_USER_ID).append("=?");
+                    sqlDeleteUserEntry = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        boolean deleted;
+        synchronized(sqlDeleteUserEntry) {
+            bindField(sqlDeleteUserEntry, 1, entryId);
+            bindField(sqlDeleteUserEntry, 2, userId);
+            deleted = sqlDeleteUserEntry.executeUpdateDelete() > 0;
+        }
+        if (deleted) {
+            em.removeFromCount(entryId, isFollowing);
+        }
+        return deleted;
     }
     
     /**
@@ -126,6 +238,29 @@ public class UserEntryManager extends ManagerBase {
         }
     }
     
+    /**
+     * Check whether any entries are known to be owned by a user
+     * @param userId A valid Musubi user id
+     * @return true if the user owns at least one entry
+     */
+    public boolean hasUserEntries(String userId) {
+        SQLiteDatabase db = initializeDatabase();
+        if (sqlHasUserEntries == null) {
+            synchronized(this) {
+                if (sqlHasUserEntries == null) {
+                    StringBuilder sql = new StringBuilder()
+                        .append("SELECT EXISTS(SELECT 1 FROM ").append(MUserEntry.TABLE)
+                        .append(" WHERE ").append(MUserEntry.COL_USER_ID).append("=?)");
+                    sqlHasUserEntries = db.compileStatement(sql.toString());
+                }
+            }
+        }
+        synchronized(sqlHasUserEntries) {
+            bindField(sqlHasUserEntries, 1, userId);
+            return sqlHasUserEntries.simpleQueryForLong() != 0;
+        }
+    }
+    
     /**
      * Get all users for an entry
      * @param entryId MEntry id
@@ -150,6 +285,44 @@ public class UserEntryManager extends ManagerBase {
         }
     }
     
+    /**
+     * Get the users of many entries at once
+     * @param entryIds MEntry ids
+     * @return Map of entry id to the ids of its users, for entries that
+     * have any
+     */
+    public Map<Long, Set<String>> getUserIds(Collection<Long> entryIds) {
+        SQLiteDatabase db = initializeDatabase();
+        Map<Long, Set<String>> users = new HashMap<Long, Set<String>>();
+        List<Long> pending = new ArrayList<Long>(entryIds);
+        for (int start = 0; start < pending.size(); start += MAX_SQL_ARGS) {
+            List<Long> chunk = pending.subList(start, Math.min(start + MAX_SQL_ARGS, pending.size()));
+            String table = MUserEntry.TABLE;
+            String[] columns = STANDARD_FIELDS;
+            String selection = MUserEntry.COL_ENTRY_ID + " IN (" + placeholders(chunk.size()) + ")";
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selectionArgs[i] = chunk.get(i).toString();
+            }
+            String groupBy = null, having = null, orderBy = null;
+            Cursor c = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+            try {
+                while (c.moveToNext()) {
+                    MUserEntry userEntry = fillInStandardFields(c);
+                    Set<String> entryUsers = users.get(userEntry.entryId);
+                    if (entryUsers == null) {
+                        entryUsers = new HashSet<String>();
+                        users.put(userEntry.entryId, entryUsers);
+                    }
+                    entryUsers.add(userEntry.userId);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return users;
+    }
+    
     /**
      * Get all entries for a user
      * @param userId String global user id
@@ -187,6 +360,15 @@ public class UserEntryManager extends ManagerBase {
         if (sqlInsertUserEntry != null) {
             sqlInsertUserEntry.close();
         }
+        if (sqlInsertOrIgnoreUserEntry != null) {
+            sqlInsertOrIgnoreUserEntry.close();
+        }
+        if (sqlHasUserEntries != null) {
+            sqlHasUserEntries.close();
+        }
+        if (sqlDeleteUserEntry != null) {
+            sqlDeleteUserEntry.close();
+        }
     }
 
 }
@@ -1,12 +1,17 @@
 package mobisocial.rectacular.services;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import mobisocial.rectacular.App;
 import mobisocial.rectacular.model.EntryManager;
 import mobisocial.rectacular.model.FollowerManager;
 import mobisocial.rectacular.model.MEntry;
+import mobisocial.rectacular.model.MInstalledApp;
+import mobisocial.rectacular.model.ManagerRegistry;
 import mobisocial.rectacular.model.MEntry.EntryType;
 import mobisocial.rectacular.model.UserEntryManager;
 import mobisocial.rectacular.social.Entry;
@@ -17,6 +22,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.util.Log;
@@ -33,8 +39,8 @@ public class AppInstallReceiver extends BroadcastReceiver {
         Uri appUri = intent.getData();
         Log.d(TAG, "uri: " + appUri.toString());
         
-        String packageName = appUri.getSchemeSpecificPart();
-        String name = getApplicationName(context, packageName, PackageManager.GET_UNINSTALLED_PACKAGES);
+        final String packageName = appUri.getSchemeSpecificPart();
+        final String name = getApplicationName(context, packageName, PackageManager.GET_UNINSTALLED_PACKAGES);
         if (name == null) {
             return;
         }
@@ -45,29 +51,65 @@ public class AppInstallReceiver extends BroadcastReceiver {
             return;
         }
         
-        // Save the app
+        // Queue the app in the inbox; it is saved and posted along with
+        // incoming objs. The insert goes ahead of other database
+        // writer work.
+        InboxProcessor.getInstance(context).append(appUri, goAsync());
+    }
+    
+    /**
+     * Save a newly installed app and let followers know about it
+     * @param context Context to reach the package manager and database
+     * @param packageName Package of the installed app
+     */
+    static void saveApp(Context context, String packageName) {
+        String name = getApplicationName(context, packageName, 0);
+        if (name == null) {
+            Log.w(TAG, "package went away: " + packageName);
+            return;
+        }
         Musubi musubi = Musubi.getInstance(context);
         List<DbIdentity> myIdentities = musubi.users(null);
-        EntryManager em = new EntryManager(App.getDatabaseSource(context));
-        UserEntryManager uem = new UserEntryManager(App.getDatabaseSource(context));
+        ManagerRegistry managers = App.getManagers(context);
+        EntryManager em = managers.getEntryManager();
+        UserEntryManager uem = managers.getUserEntryManager();
+        MEntry installed = new MEntry();
+        installed.name = name;
+        installed.metadata = packageName;
+        List<String> myIds = new ArrayList<String>(myIdentities.size());
         for (DbIdentity ident : myIdentities) {
-            uem.ensureUserEntry(em, EntryType.App, name, packageName, true, ident.getId(), true);
+            myIds.add(ident.getId());
         }
+        Map<String, MEntry> saved = uem.ensureUserEntries(
+                em, EntryType.App, Collections.singletonList(installed), true, myIds, true);
         
         // Let followers know
-        MEntry dbEntry = em.getEntry(EntryType.App, name);
+        MEntry dbEntry = saved.get(name);
         if (dbEntry == null) {
             return; // should never happen
         }
-        FollowerManager fm = new FollowerManager(App.getDatabaseSource(context));
-        SocialClient sc = new SocialClient(musubi, context);
+        
+        // Keep the next app scan from reprocessing this package
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+            MInstalledApp app = new MInstalledApp();
+            app.packageName = packageName;
+            app.lastUpdate = info.lastUpdateTime;
+            app.labelHash = name.hashCode();
+            app.entryId = dbEntry.id;
+            managers.getInstalledAppManager().saveInstalledApp(app);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "package went away: " + packageName);
+        }
+        FollowerManager fm = managers.getFollowerManager();
+        SocialClient sc = App.getSocialClient(context);
         Entry entry = sc.dbEntryToEntry(dbEntry);
         List<Entry> entries = new LinkedList<Entry>();
         entries.add(entry);
         sc.postToFollowers(entries, fm.getFollowers(EntryType.App), EntryType.App, null);
     }
     
-    private String getApplicationName(Context context, String data, int flag) {
+    private static String getApplicationName(Context context, String data, int flag) {
         final PackageManager pckManager = context.getPackageManager();
         ApplicationInfo applicationInformation;
         try {
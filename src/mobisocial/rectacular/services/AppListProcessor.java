@@ -1,9 +1,20 @@
 package mobisocial.rectacular.services;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import mobisocial.rectacular.App;
+import mobisocial.rectacular.model.DatabaseWriter;
 import mobisocial.rectacular.model.EntryManager;
+import mobisocial.rectacular.model.InstalledAppManager;
+import mobisocial.rectacular.model.MEntry;
+import mobisocial.rectacular.model.MInstalledApp;
+import mobisocial.rectacular.model.ManagerRegistry;
+import mobisocial.rectacular.model.SeenObjManager;
+import mobisocial.rectacular.model.TransactionHooks;
 import mobisocial.rectacular.model.UserEntryManager;
 import mobisocial.rectacular.model.MEntry.EntryType;
 import mobisocial.rectacular.social.SocialClient;
@@ -11,35 +22,42 @@ import mobisocial.socialkit.musubi.DbIdentity;
 import mobisocial.socialkit.musubi.DbObj;
 import mobisocial.socialkit.musubi.Musubi;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 public class AppListProcessor extends ContentObserver {
     private static final String TAG = "AppListProcessor";
     
+    private static final long SEEN_OBJ_LIFETIME_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final int SCAN_BATCH_SIZE = 50;
+    
     private final Context mContext;
+    private final SQLiteOpenHelper mDatabaseSource;
     private final EntryManager mEntryManager;
     private final UserEntryManager mUserEntryManager;
+    private final InstalledAppManager mInstalledAppManager;
+    private final SeenObjManager mSeenObjManager;
     private final Musubi mMusubi;
     
     public static AppListProcessor newInstance(Context context, SQLiteOpenHelper dbh) {
-        HandlerThread thread = new HandlerThread("AppListProcessorThread");
-        thread.setPriority(Thread.MIN_PRIORITY);
-        thread.start();
-        return new AppListProcessor(context, dbh, thread);
+        return new AppListProcessor(context, dbh);
     }
     
-    private AppListProcessor(Context context, SQLiteOpenHelper dbh, HandlerThread thread) {
-        super(new Handler(thread.getLooper()));
+    private AppListProcessor(Context context, SQLiteOpenHelper dbh) {
+        super(null); // the work itself is handed to the database writer
         mContext = context;
-        mEntryManager = new EntryManager(dbh);
-        mUserEntryManager = new UserEntryManager(dbh);
+        mDatabaseSource = dbh;
+        ManagerRegistry managers = App.getManagers(context);
+        mEntryManager = managers.getEntryManager();
+        mUserEntryManager = managers.getUserEntryManager();
+        mInstalledAppManager = managers.getInstalledAppManager();
+        mSeenObjManager = managers.getSeenObjManager();
         if (Musubi.isMusubiInstalled(context)) {
             mMusubi = Musubi.getInstance(context);
         } else {
@@ -50,49 +68,167 @@ public class AppListProcessor extends ContentObserver {
     @Override
     public void onChange(boolean selfChange) {
         Log.d(TAG, "onChange");
+        DatabaseWriter.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                processApps();
+            }
+        });
+    }
+    
+    private void processApps() {
         if (mMusubi == null) {
             mContext.getContentResolver().notifyChange(App.URI_APP_SETUP_COMPLETE, null);
             return;
         }
-        PackageManager pm = mContext.getPackageManager();
-        List<ApplicationInfo> apps = pm.getInstalledApplications(0);
         List<DbIdentity> myIdentities = mMusubi.users(null);
         if (myIdentities.size() == 0) {
             mContext.getContentResolver().notifyChange(App.URI_APP_SETUP_COMPLETE, null);
             return;
         }
-        for (ApplicationInfo app : apps) {
-            String name = (String)pm.getApplicationLabel(app);
-            String packageName = app.packageName;
-            Log.d(TAG, "Installed App: " + name);
-            for (DbIdentity ident : myIdentities) { // all owned identities
-                mUserEntryManager.ensureUserEntry(
-                        mEntryManager, EntryType.App, name, packageName, true, ident.getId(), true);
-            }
+        List<String> myIds = new ArrayList<String>(myIdentities.size());
+        for (DbIdentity ident : myIdentities) { // all owned identities
+            myIds.add(ident.getId());
         }
+        scanInstalledApps(myIds);
+        
+        SharedPreferences prefs = mContext.getSharedPreferences(App.PREFS_FILE, 0);
+        respondToNewHellos(prefs);
+        
+        // Musubi does not redeliver objs this old
+        mSeenObjManager.deleteSeenBefore(System.currentTimeMillis() - SEEN_OBJ_LIFETIME_MS);
         
-        // See if there are any hellos to respond to
+        // Save the state indicating that apps were fetched and saved
+        mEntryManager.flushCounts();
+        prefs.edit().putBoolean(App.PREF_APP_SETUP_COMPLETE, true).commit();
+        mContext.getContentResolver().notifyChange(App.URI_APP_SETUP_COMPLETE, null);
+    }
+
+    /**
+     * Respond to hellos received since the last scan. Only obj ids are
+     * queried; each new hello is then loaded on its own.
+     * @param prefs Preferences holding the id of the last hello handled
+     */
+    private void respondToNewHellos(SharedPreferences prefs) {
+        long watermark = prefs.getLong(App.PREF_HELLO_WATERMARK, -1);
         Cursor c = mMusubi.queryAppData(
-                new String[] {
-                        DbObj.COL_APP_ID, DbObj.COL_TYPE, DbObj.COL_STRING_KEY, DbObj.COL_JSON,
-                        DbObj.COL_RAW, DbObj.COL_IDENTITY_ID, DbObj.COL_UNIVERSAL_HASH,
-                        DbObj.COL_FEED_ID, DbObj.COL_INT_KEY, DbObj.COL_TIMESTAMP, DbObj.COL_PARENT_ID
-                }, DbObj.COL_TYPE + "=?", new String[] { SocialClient.HELLO_TYPE }, null);
-        SocialClient sc = new SocialClient(mMusubi, mContext);
+                new String[] { DbObj.COL_ID },
+                DbObj.COL_TYPE + "=? AND " + DbObj.COL_ID + ">?",
+                new String[] { SocialClient.HELLO_TYPE, Long.toString(watermark) },
+                DbObj.COL_ID + " ASC");
+        if (c == null) {
+            return;
+        }
+        SocialClient sc = App.getSocialClient(mContext);
+        int handled = 0;
         try {
-            while (c != null && c.moveToNext()) {
-                DbObj obj = mMusubi.objForCursor(c);
-                if (obj == null) continue;
-                sc.handleIncomingObj(obj);
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                try {
+                    DbObj obj = mMusubi.objForId(id);
+                    if (obj != null) {
+                        sc.handleIncomingObj(obj);
+                        handled++;
+                    }
+                } catch (RuntimeException e) {
+                    // skip it, as the inbox does, so setup still completes
+                    Log.e(TAG, "could not respond to hello " + id, e);
+                }
+                watermark = id;
             }
         } finally {
             c.close();
         }
+        if (handled > 0) {
+            Log.d(TAG, "responded to " + handled + " new hellos");
+        }
+        prefs.edit().putLong(App.PREF_HELLO_WATERMARK, watermark).commit();
+    }
+    
+    /**
+     * Save apps that were added, updated or relabeled since the last scan
+     * and disown apps that were removed. Unchanged packages are skipped
+     * without touching the database. Apps are saved in short transactions,
+     * so other writer work can run in between.
+     * @param myIds Global ids of all owned identities
+     */
+    private void scanInstalledApps(List<String> myIds) {
+        PackageManager pm = mContext.getPackageManager();
+        List<PackageInfo> packages = pm.getInstalledPackages(0);
+        Map<String, MInstalledApp> known = mInstalledAppManager.getInstalledApps();
+        List<MInstalledApp> changed = new ArrayList<MInstalledApp>();
+        List<MEntry> installed = new ArrayList<MEntry>();
+        Set<Long> maybeDisowned = new HashSet<Long>();
+        for (PackageInfo pkg : packages) {
+            MInstalledApp app = known.remove(pkg.packageName);
+            // resolved on every scan; a locale change relabels apps
+            // without updating them
+            String label = pm.getApplicationLabel(pkg.applicationInfo).toString();
+            int labelHash = label.hashCode();
+            if (app != null && app.lastUpdate == pkg.lastUpdateTime &&
+                    app.labelHash == labelHash) {
+                continue;
+            }
+            MEntry entry = new MEntry();
+            entry.name = label;
+            entry.metadata = pkg.packageName;
+            Log.d(TAG, "Installed App: " + entry.name);
+            installed.add(entry);
+            
+            if (app == null) {
+                app = new MInstalledApp();
+                app.packageName = pkg.packageName;
+            } else if (app.labelHash != labelHash) {
+                maybeDisowned.add(app.entryId); // label moved to another entry
+            }
+            app.lastUpdate = pkg.lastUpdateTime;
+            app.labelHash = labelHash;
+            changed.add(app);
+        }
+        Log.d(TAG, installed.size() + " changed apps, " + known.size() + " removed apps");
         
-        // Save the state indicating that apps were fetched and saved
-        mContext.getSharedPreferences(App.PREFS_FILE, 0)
-            .edit().putBoolean(App.PREF_APP_SETUP_COMPLETE, true).commit();
-        mContext.getContentResolver().notifyChange(App.URI_APP_SETUP_COMPLETE, null);
+        SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
+        for (int start = 0; start < changed.size(); start += SCAN_BATCH_SIZE) {
+            int end = Math.min(start + SCAN_BATCH_SIZE, changed.size());
+            TransactionHooks.begin(db);
+            try {
+                Map<String, MEntry> saved = mUserEntryManager.ensureUserEntries(
+                        mEntryManager, EntryType.App, installed.subList(start, end), true, myIds, true);
+                for (int i = start; i < end; i++) {
+                    MInstalledApp app = changed.get(i);
+                    app.entryId = saved.get(installed.get(i).name).id;
+                    mInstalledAppManager.saveInstalledApp(app);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                TransactionHooks.end(db);
+            }
+            DatabaseWriter.getInstance().runUrgent();
+        }
+        
+        TransactionHooks.begin(db);
+        try {
+            for (MInstalledApp removed : known.values()) {
+                mInstalledAppManager.deleteInstalledApp(removed.packageName);
+                maybeDisowned.add(removed.entryId);
+            }
+            
+            // Only disown entries that no installed package still maps to
+            for (Long entryId : maybeDisowned) {
+                if (!mInstalledAppManager.hasEntry(entryId)) {
+                    MEntry entry = new MEntry();
+                    entry.id = entryId;
+                    entry.owned = false;
+                    mEntryManager.updateOwned(entry);
+                    for (String myId : myIds) {
+                        mUserEntryManager.deleteUserEntry(mEntryManager, entryId, myId, true);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            TransactionHooks.end(db);
+        }
     }
 
 }
@@ -0,0 +1,212 @@
+package mobisocial.rectacular.services;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+
+import mobisocial.rectacular.App;
+import mobisocial.rectacular.model.DatabaseWriter;
+import mobisocial.rectacular.model.InboxManager;
+import mobisocial.rectacular.model.MInboxItem;
+import mobisocial.rectacular.model.TransactionHooks;
+import mobisocial.rectacular.social.SocialClient;
+import mobisocial.rectacular.util.ChangeDispatcher;
+import mobisocial.socialkit.musubi.DbObj;
+import mobisocial.socialkit.musubi.Musubi;
+import android.content.BroadcastReceiver.PendingResult;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Persists incoming objs and installed apps and processes them in order, in
+ * batches, on the database writer thread. Batches are kept small so saving
+ * to the inbox never waits long for the writer.
+ */
+public class InboxProcessor {
+    private static final String TAG = "InboxProcessor";
+
+    private static final long BATCH_SIZE = 10;
+    private static final long DRAIN_DELAY_MS = 250; // lets bursts collect
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 30 * 1000; // doubled per failure
+    private static final String SCHEME_PACKAGE = "package";
+
+    private static InboxProcessor sInstance;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mDatabaseSource;
+    private final InboxManager mInboxManager;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    private final Runnable mRetryTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduleDrain();
+        }
+    };
+
+    public static synchronized InboxProcessor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new InboxProcessor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private InboxProcessor(Context context) {
+        mContext = context;
+        mDatabaseSource = App.getDatabaseSource(context);
+        mInboxManager = App.getManagers(context).getInboxManager();
+    }
+
+    /**
+     * Save an obj or installed app for processing. The insert runs on the
+     * database writer ahead of queued work, between its transactions.
+     * @param objUri Uri of the received obj, or package uri of the app
+     * @param result Result of the receiver that got it, finished once the
+     * item is saved
+     */
+    public void append(final Uri objUri, final PendingResult result) {
+        DatabaseWriter.getInstance().executeUrgent(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MInboxItem item = new MInboxItem();
+                    item.objUri = objUri;
+                    item.received = System.currentTimeMillis();
+                    mInboxManager.insertItem(item);
+                    scheduleDrain();
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Make sure everything in the inbox gets processed soon
+     */
+    public void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            DatabaseWriter.getInstance().schedule(mDrainTask, DRAIN_DELAY_MS);
+        }
+    }
+
+    private void drain() {
+        if (!Musubi.isMusubiInstalled(mContext)) {
+            return;
+        }
+        // Receivers used Musubi.forIntent, which only presets a default feed
+        // and obj from the intent. Objs are looked up by uri and posts name
+        // their feed, so the shared instance resolves the same things.
+        Musubi musubi = Musubi.getInstance(mContext);
+        SocialClient sc = App.getSocialClient(mContext);
+        SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
+        while (true) {
+            // let receivers save what just arrived
+            DatabaseWriter.getInstance().runUrgent();
+            List<MInboxItem> items = mInboxManager.getItems(BATCH_SIZE,
+                    System.currentTimeMillis());
+            if (items.isEmpty()) {
+                break;
+            }
+            MInboxItem failed = null;
+            long start = SystemClock.uptimeMillis();
+            TransactionHooks.begin(db);
+            try {
+                for (MInboxItem item : items) {
+                    try {
+                        if (SCHEME_PACKAGE.equals(item.objUri.getScheme())) {
+                            AppInstallReceiver.saveApp(
+                                    mContext, item.objUri.getSchemeSpecificPart());
+                        } else {
+                            handleObj(musubi, sc, item.objUri);
+                        }
+                        mInboxManager.deleteItem(item.id);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "could not process " + item.objUri, e);
+                        failed = item;
+                        break;
+                    }
+                }
+                if (failed == null) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                TransactionHooks.end(db);
+            }
+
+            // Nothing from a failed batch is kept: its posts and cached
+            // state went with the rollback. Set the bad obj aside and run
+            // the batch again without it.
+            if (failed != null) {
+                postpone(failed);
+                continue;
+            }
+            Log.d(TAG, "processed " + items.size() + " objs in " +
+                    (SystemClock.uptimeMillis() - start) + "ms");
+            
+            // Readers only see the batch once it is committed
+            ChangeDispatcher.getInstance(mContext).notifyChange(App.URI_NEW_CONTENT);
+        }
+        
+        long now = System.currentTimeMillis();
+        long nextRetry = mInboxManager.getNextRetry(now);
+        if (nextRetry > 0) {
+            DatabaseWriter.getInstance().schedule(mRetryTask, nextRetry - now);
+        }
+    }
+
+    /**
+     * Try a failed obj again later, with a longer wait each time, so a
+     * passing error does not lose it. It is dropped after
+     * {@link #MAX_ATTEMPTS} failures; later objs go ahead of it meanwhile.
+     * @param item MInboxItem that failed
+     */
+    private void postpone(MInboxItem item) {
+        item.attempts++;
+        if (item.attempts >= MAX_ATTEMPTS) {
+            Log.w(TAG, "dropping " + item.objUri + " after " + item.attempts + " attempts");
+            mInboxManager.deleteItem(item.id);
+            return;
+        }
+        item.retryAfter = System.currentTimeMillis() +
+                (RETRY_DELAY_MS << (item.attempts - 1));
+        mInboxManager.updateAttempts(item);
+    }
+
+    private void handleObj(Musubi musubi, SocialClient sc, Uri objUri) {
+        DbObj obj = musubi.objForUri(objUri);
+
+        if (obj == null) {
+            Log.d(TAG, "obj is null?");
+            return;
+        }
+
+        JSONObject json = obj.getJson();
+        if (json == null) {
+            Log.d(TAG, "no json attached to obj");
+            return;
+        }
+        Log.d(TAG, "json: " + json);
+
+        if (obj.getSender().isOwned()) {
+            return; // TODO: maybe do something else with messages I send
+        }
+
+        // Let the wrappers handle the obj
+        sc.handleIncomingObj(obj);
+    }
+}
@@ -1,10 +1,5 @@
 package mobisocial.rectacular.services;
 
-import org.json.JSONObject;
-
-import mobisocial.rectacular.social.SocialClient;
-import mobisocial.socialkit.musubi.DbObj;
-import mobisocial.socialkit.musubi.Musubi;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -29,28 +24,9 @@ public class MessageReceiver extends BroadcastReceiver {
         }
         Log.d(TAG, "obj uri: " + objUri.toString());
         
-        Musubi musubi = Musubi.forIntent(context, intent);
-        DbObj obj = musubi.objForUri(objUri);
-        
-        if (obj == null) {
-            Log.d(TAG, "obj is null?");
-            return;
-        }
-        
-        JSONObject json = obj.getJson();
-        if (json == null) {
-            Log.d(TAG, "no json attached to obj");
-            return;
-        }
-        Log.d(TAG, "json: " + json);
-        
-        if (obj.getSender().isOwned()) {
-            return; // TODO: maybe do something else with messages I send
-        }
-        
-        // Let the wrappers handle the obj
-        SocialClient sc = new SocialClient(musubi, context);
-        sc.handleIncomingObj(obj);
+        // Save the obj to the inbox; it is processed later in a batch. The
+        // insert goes ahead of other database writer work.
+        InboxProcessor.getInstance(context).append(objUri, goAsync());
     }
 
 }
@@ -29,10 +29,15 @@ public class Entry {
     public Set<String> owners;
     
     /**
-     * Optional extra data (e.g. thumbnail)
+     * Optional extra data (e.g. an inline thumbnail from older clients)
      */
     public byte[] extra;
     
+    /**
+     * Optional hash of the thumbnail, fetched separately when missing
+     */
+    public String thumbnailHash;
+    
     /**
      * Optional string metadata
      */
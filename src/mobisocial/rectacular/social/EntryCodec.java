@@ -0,0 +1,442 @@
+package mobisocial.rectacular.social;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mobisocial.rectacular.model.MEntry.EntryType;
+
+/**
+ * Compact binary encoding for a batch of entries, carried in an obj's raw
+ * field. Layout (version 3):
+ * <pre>
+ * byte    version
+ * varint  entry type ordinal
+ * varint  owner count, then each owner id as a string, most frequent first
+ * varint  entry count, then for each entry:
+ *   byte    flags (owned, has extra, has metadata, has thumbnail,
+ *           owner bitset)
+ *   string  name
+ *   string  metadata          (if flagged)
+ *   bytes   extra             (if flagged)
+ *   string  thumbnail hash    (if flagged)
+ *   owners  either a bitset over the owner table (if flagged), or a varint
+ *           count followed by ascending indexes into the table, each
+ *           written as the gap from the previous one
+ * </pre>
+ * Strings and byte arrays are a varint length followed by the bytes; strings
+ * are UTF-8. Version 2 writes owners as a count and absolute indexes only;
+ * version 1 also lacks thumbnail hashes.
+ * <p>
+ * Decoded entries with the same owners share one unmodifiable owner set.
+ */
+public class EntryCodec {
+    /**
+     * The format version this codec writes. 0 means plain JSON.
+     */
+    public static final int VERSION = 3;
+
+    private static final int FLAG_OWNED = 1;
+    private static final int FLAG_EXTRA = 1 << 1;
+    private static final int FLAG_METADATA = 1 << 2;
+    private static final int FLAG_THUMBNAIL = 1 << 3;
+    private static final int FLAG_OWNER_BITSET = 1 << 4;
+
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Encode entries of one type
+     * @param type EntryType shared by the entries
+     * @param entries List of entries
+     * @return Encoded bytes
+     */
+    public static byte[] encode(EntryType type, List<Entry> entries) {
+        // Frequent owners get the small indexes
+        final Map<String, Integer> ownerCounts = new HashMap<String, Integer>();
+        for (Entry entry : entries) {
+            for (String owner : entry.owners) {
+                Integer count = ownerCounts.get(owner);
+                ownerCounts.put(owner, (count == null) ? 1 : count + 1);
+            }
+        }
+        List<String> owners = new ArrayList<String>(ownerCounts.keySet());
+        Collections.sort(owners, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int diff = ownerCounts.get(rhs) - ownerCounts.get(lhs);
+                return (diff != 0) ? diff : lhs.compareTo(rhs);
+            }
+        });
+        Map<String, Integer> ownerIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < owners.size(); i++) {
+            ownerIndex.put(owners.get(i), i);
+        }
+        int bitsetSize = (owners.size() + 7) / 8;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        writeVarint(out, type.ordinal());
+        writeVarint(out, owners.size());
+        for (String owner : owners) {
+            writeString(out, owner);
+        }
+        writeVarint(out, entries.size());
+        for (Entry entry : entries) {
+            int[] indexes = new int[entry.owners.size()];
+            int n = 0;
+            for (String owner : entry.owners) {
+                indexes[n++] = ownerIndex.get(owner);
+            }
+            Arrays.sort(indexes);
+            int listSize = varintSize(indexes.length);
+            for (int j = 0; j < indexes.length; j++) {
+                listSize += varintSize(indexes[j] - ((j > 0) ? indexes[j - 1] : 0));
+            }
+            boolean useBitset = bitsetSize < listSize;
+            
+            int flags = 0;
+            if (useBitset) flags |= FLAG_OWNER_BITSET;
+            if (entry.owned) flags |= FLAG_OWNED;
+            if (entry.extra != null) flags |= FLAG_EXTRA;
+            if (entry.metadata != null) flags |= FLAG_METADATA;
+            if (entry.thumbnailHash != null) flags |= FLAG_THUMBNAIL;
+            out.write(flags);
+            writeString(out, entry.name);
+            if (entry.metadata != null) {
+                writeString(out, entry.metadata);
+            }
+            if (entry.extra != null) {
+                writeBytes(out, entry.extra);
+            }
+            if (entry.thumbnailHash != null) {
+                writeString(out, entry.thumbnailHash);
+            }
+            if (useBitset) {
+                byte[] bitset = new byte[bitsetSize];
+                for (int index : indexes) {
+                    bitset[index / 8] |= 1 << (index % 8);
+                }
+                out.write(bitset, 0, bitset.length);
+            } else {
+                writeVarint(out, indexes.length);
+                for (int j = 0; j < indexes.length; j++) {
+                    writeVarint(out, indexes[j] - ((j > 0) ? indexes[j - 1] : 0));
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode entries written by {@link #encode(EntryType, List)}
+     * @param data Encoded bytes
+     * @return List of entries
+     * @throws IOException if the data is malformed or of an unknown version
+     */
+    public static List<Entry> decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unknown entry format " + version);
+        }
+        int typeOrdinal = in.readVarint();
+        EntryType[] types = EntryType.values();
+        if (typeOrdinal >= types.length) {
+            throw new IOException("unknown entry type " + typeOrdinal);
+        }
+        EntryType type = types[typeOrdinal];
+
+        int ownerCount = in.readVarint();
+        if (ownerCount > in.remaining()) {
+            // each owner takes at least a byte
+            throw new IOException("bad owner count " + ownerCount);
+        }
+        String[] owners = new String[ownerCount];
+        for (int i = 0; i < ownerCount; i++) {
+            owners[i] = in.readString();
+        }
+
+        int bitsetSize = (ownerCount + 7) / 8;
+        Map<OwnerKey, Set<String>> ownerSets = new HashMap<OwnerKey, Set<String>>();
+
+        int entryCount = in.readVarint();
+        List<Entry> entries = new ArrayList<Entry>(Math.min(entryCount, data.length));
+        for (int i = 0; i < entryCount; i++) {
+            Entry entry = new Entry();
+            entry.type = type;
+            int flags = in.readByte();
+            entry.owned = (flags & FLAG_OWNED) != 0;
+            entry.name = in.readString();
+            if ((flags & FLAG_METADATA) != 0) {
+                entry.metadata = in.readString();
+            }
+            if ((flags & FLAG_EXTRA) != 0) {
+                entry.extra = in.readBytes();
+            }
+            if ((flags & FLAG_THUMBNAIL) != 0) {
+                entry.thumbnailHash = in.readString();
+            }
+            
+            // Read the owner indexes once per distinct encoding
+            int start = in.position();
+            if ((flags & FLAG_OWNER_BITSET) != 0) {
+                in.skip(bitsetSize);
+            } else {
+                int count = in.readVarint();
+                for (int j = 0; j < count; j++) {
+                    in.readVarint();
+                }
+            }
+            OwnerKey key = new OwnerKey(data, start, in.position(), flags & FLAG_OWNER_BITSET);
+            entry.owners = ownerSets.get(key);
+            if (entry.owners == null) {
+                entry.owners = Collections.unmodifiableSet(
+                        readOwners(new Reader(data, start), version, flags, owners));
+                ownerSets.put(key, entry.owners);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static Set<String> readOwners(Reader in, int version, int flags, String[] owners)
+            throws IOException {
+        Set<String> result = new HashSet<String>();
+        if ((flags & FLAG_OWNER_BITSET) != 0) {
+            for (int index = 0; index < owners.length; index += 8) {
+                int bits = in.readByte();
+                for (int bit = 0; bit < 8 && bits != 0; bit++, bits >>= 1) {
+                    if ((bits & 1) != 0) {
+                        if (index + bit >= owners.length) {
+                            throw new IOException("bad owner index " + (index + bit));
+                        }
+                        result.add(owners[index + bit]);
+                    }
+                }
+            }
+            return result;
+        }
+        int count = in.readVarint();
+        int index = 0;
+        for (int j = 0; j < count; j++) {
+            int value = in.readVarint();
+            index = (version >= 3) ? index + value : value;
+            if (index < 0 || index >= owners.length) {
+                throw new IOException("bad owner index " + index);
+            }
+            result.add(owners[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Compress encoded entries
+     * @param data Bytes from {@link #encode(EntryType, List)}
+     * @return Deflated bytes
+     */
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress bytes written by {@link #deflate(byte[])}
+     * @param data Deflated bytes
+     * @param maxSize Largest decompressed size to accept
+     * @return Decompressed bytes
+     * @throws IOException if the data is malformed or too large
+     */
+    public static byte[] inflate(byte[] data, int maxSize) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated deflate data");
+                }
+                if (out.size() + n > maxSize) {
+                    throw new IOException("inflated entry data is too large");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("bad deflate data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        try {
+            writeBytes(out, value.getBytes(CHARSET));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always present
+        }
+    }
+
+    /**
+     * The encoded owners of one entry, compared by content without copying.
+     * The same bytes mean different owners as a bitset and as a list, so the
+     * encoding is part of the key.
+     */
+    private static class OwnerKey {
+        private final byte[] mData;
+        private final int mStart;
+        private final int mEnd;
+        private final int mEncoding;
+        private final int mHash;
+
+        OwnerKey(byte[] data, int start, int end, int encoding) {
+            mData = data;
+            mStart = start;
+            mEnd = end;
+            mEncoding = encoding;
+            int hash = encoding;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            mHash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof OwnerKey)) return false;
+            OwnerKey other = (OwnerKey) o;
+            if (other.mHash != mHash || other.mEncoding != mEncoding ||
+                    other.mEnd - other.mStart != mEnd - mStart) {
+                return false;
+            }
+            for (int i = 0; i < mEnd - mStart; i++) {
+                if (mData[mStart + i] != other.mData[other.mStart + i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mPos;
+
+        Reader(byte[] data) {
+            this(data, 0);
+        }
+
+        Reader(byte[] data, int position) {
+            mData = data;
+            mPos = position;
+        }
+
+        int position() {
+            return mPos;
+        }
+
+        int remaining() {
+            return mData.length - mPos;
+        }
+
+        void skip(int count) throws IOException {
+            if (count > mData.length - mPos) {
+                throw new IOException("truncated entry data");
+            }
+            mPos += count;
+        }
+
+        int readByte() throws IOException {
+            if (mPos >= mData.length) {
+                throw new IOException("truncated entry data");
+            }
+            return mData[mPos++] & 0xFF;
+        }
+
+        int readVarint() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (result < 0) {
+                        throw new IOException("varint out of range");
+                    }
+                    return result;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readVarint();
+            if (length > mData.length - mPos) {
+                throw new IOException("truncated entry data");
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(mData, mPos, bytes, 0, length);
+            mPos += length;
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length > mData.length - mPos) {
+                throw new IOException("truncated entry data");
+            }
+            String value = new String(mData, mPos, length, CHARSET);
+            mPos += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package mobisocial.rectacular.social;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import mobisocial.rectacular.model.DatabaseWriter;
+import mobisocial.rectacular.model.MEntry.EntryType;
+import mobisocial.rectacular.model.MFollower;
+import mobisocial.rectacular.model.TransactionHooks;
+import android.util.Log;
+
+/**
+ * Holds outgoing entries for a short time and merges them per type and
+ * follower, so a burst of updates goes out as one obj per follower.
+ * Followers that were queued the same batches share one encoded obj.
+ * Entries with different hop limits are kept apart. Forwarded entries
+ * are recorded in the forwarding ledger once they have been posted.
+ */
+class OutboundQueue {
+    private static final String TAG = "OutboundQueue";
+
+    private static final long FLUSH_DELAY_MS = 1500;
+    private static final int MAX_PENDING = 500;
+
+    private final Object mLock = new Object();
+    private Map<List<Long>, Pending> mPending = new HashMap<List<Long>, Pending>();
+    private long mNextBatch;
+    private SocialClient mClient;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(mLock) {
+                mScheduledFlush = null;
+            }
+            flush();
+        }
+    };
+
+    /**
+     * Entries waiting for one follower
+     */
+    private static class Pending {
+        MFollower follower;
+        EntryType type;
+        int hops;
+        boolean forwarded;
+        List<Long> batches = new ArrayList<Long>();
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * Queue entries for a set of followers. Entries queued inside a
+     * transaction are only queued once it commits.
+     * @param client SocialClient used to send the merged entries
+     * @param type EntryType of the entries
+     * @param followers Followers to send to
+     * @param entries List of entries
+     * @param hops Number of times the entries may still be sent on
+     * @param forwarded true to record the entries in the forwarding ledger
+     * once they are posted
+     */
+    public void add(final SocialClient client, final EntryType type,
+            final List<MFollower> followers, final List<Entry> entries, final int hops,
+            final boolean forwarded) {
+        if (followers.isEmpty() || entries.isEmpty()) return;
+        TransactionHooks.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                queue(client, type, followers, entries, hops, forwarded);
+            }
+        });
+    }
+
+    private void queue(SocialClient client, EntryType type, List<MFollower> followers,
+            List<Entry> entries, int hops, boolean forwarded) {
+        synchronized(mLock) {
+            mClient = client;
+            long batch = mNextBatch++;
+            boolean full = false;
+            for (MFollower follower : followers) {
+                List<Long> key = Arrays.asList(follower.id, (long)type.ordinal(), (long)hops);
+                Pending pending = mPending.get(key);
+                if (pending == null) {
+                    pending = new Pending();
+                    pending.type = type;
+                    pending.hops = hops;
+                    mPending.put(key, pending);
+                }
+                pending.follower = follower;
+                pending.forwarded |= forwarded;
+                pending.batches.add(batch);
+                for (Entry entry : entries) {
+                    merge(pending.entries, entry);
+                }
+                full |= pending.entries.size() >= MAX_PENDING;
+            }
+            if (full) {
+                scheduleFlush(0);
+            } else if (mScheduledFlush == null) {
+                scheduleFlush(FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Send everything queued so far
+     */
+    public void flush() {
+        Map<List<Long>, Pending> pendingByFollower;
+        SocialClient client;
+        synchronized(mLock) {
+            if (mPending.isEmpty()) return;
+            pendingByFollower = mPending;
+            mPending = new HashMap<List<Long>, Pending>();
+            client = mClient;
+            mClient = null; // don't hold on to its context
+        }
+
+        // Followers with the same batches have the same merged entries
+        Map<List<Long>, List<Pending>> groups = new LinkedHashMap<List<Long>, List<Pending>>();
+        for (Pending pending : pendingByFollower.values()) {
+            List<Pending> group = groups.get(pending.batches);
+            if (group == null) {
+                group = new ArrayList<Pending>();
+                groups.put(pending.batches, group);
+            }
+            group.add(pending);
+        }
+        for (List<Pending> group : groups.values()) {
+            Pending first = group.get(0);
+            List<MFollower> followers = new ArrayList<MFollower>(group.size());
+            for (Pending pending : group) {
+                followers.add(pending.follower);
+            }
+            List<Entry> entries = new ArrayList<Entry>(first.entries.values());
+            try {
+                client.sendEntries(entries, followers, first.type, first.hops);
+            } catch (RuntimeException e) {
+                // left out of the ledger, so they are forwarded again later
+                Log.e(TAG, "could not send queued entries", e);
+                continue;
+            }
+            if (first.forwarded) {
+                client.markForwarded(entries, followers, first.type);
+            }
+        }
+        Log.d(TAG, "sent queued entries to " + pendingByFollower.size() +
+                " followers in " + groups.size() + " objs");
+    }
+
+    private void merge(Map<String, Entry> pending, Entry entry) {
+        Entry merged = pending.get(entry.name);
+        if (merged == null) {
+            merged = new Entry();
+            merged.type = entry.type;
+            merged.name = entry.name;
+            merged.owners = new HashSet<String>();
+            pending.put(entry.name, merged);
+        }
+        merged.owned = entry.owned;
+        if (entry.owners != null) {
+            merged.owners.addAll(entry.owners);
+        }
+        if (entry.metadata != null) {
+            merged.metadata = entry.metadata;
+        }
+        if (entry.thumbnailHash != null) {
+            merged.thumbnailHash = entry.thumbnailHash;
+        }
+        if (entry.extra != null) {
+            merged.extra = entry.extra;
+        }
+    }
+
+    // Must hold mLock
+    private void scheduleFlush(long delay) {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+        }
+        mScheduledFlush = DatabaseWriter.getInstance().schedule(mFlushTask, delay);
+    }
+}
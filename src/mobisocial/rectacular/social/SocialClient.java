@@ -1,9 +1,19 @@
 package mobisocial.rectacular.social;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -13,21 +23,29 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
 import mobisocial.rectacular.App;
+import mobisocial.rectacular.R;
 import mobisocial.rectacular.model.EntryManager;
 import mobisocial.rectacular.model.FeedManager;
 import mobisocial.rectacular.model.FollowerManager;
 import mobisocial.rectacular.model.FollowingManager;
+import mobisocial.rectacular.model.ForwardedManager;
 import mobisocial.rectacular.model.MEntry;
 import mobisocial.rectacular.model.MEntry.EntryType;
 import mobisocial.rectacular.model.MFeed;
 import mobisocial.rectacular.model.MFollower;
 import mobisocial.rectacular.model.MFollowing;
 import mobisocial.rectacular.model.MUserEntry;
+import mobisocial.rectacular.model.ManagerRegistry;
+import mobisocial.rectacular.model.SeenObjManager;
+import mobisocial.rectacular.model.ThumbnailManager;
+import mobisocial.rectacular.model.TransactionHooks;
 import mobisocial.rectacular.model.UserEntryManager;
+import mobisocial.rectacular.util.ChangeDispatcher;
 import mobisocial.socialkit.musubi.DbFeed;
 import mobisocial.socialkit.musubi.DbIdentity;
 import mobisocial.socialkit.musubi.DbObj;
@@ -39,6 +57,7 @@ public class SocialClient {
     
     public static final String HELLO_TYPE = "rectacular_hello";
     public static final String ENTRIES_TYPE = "rectacular";
+    public static final String THUMBNAIL_TYPE = "rectacular_thumbnail";
     
     private static final String TYPE = "type";
     private static final String ENTRIES = "entries";
@@ -47,9 +66,51 @@ public class SocialClient {
     private static final String OWNERS = "owners";
     private static final String EXTRA = "extra";
     private static final String METADATA = "metadata";
+    private static final String FORMAT = "format";
+    private static final String THUMBNAIL = "thumbnail";
+    private static final String RESPONSE = "response";
+    private static final String CHUNK = "chunk";
+    private static final String CHUNKS = "chunks";
+    private static final String COMPRESSION = "compression";
+    private static final String DEFLATE = "deflate";
+    private static final String HOPS = "hops";
     
     private static final String HELLO = "hello";
     private static final String TO = "to";
+    private static final String FULL = "full";
+    
+    private static final String REQUEST = "request";
+    private static final String HASH = "hash";
+    
+    private static final long THUMBNAIL_RETRY_MS = 60 * 60 * 1000;
+    private static final int MAX_INFLATED_BYTES = 8 * 1024 * 1024;
+    
+    /**
+     * Hops allowed for entries I send: my followers may pass them on once.
+     * Older clients don't send hops and get the same limit.
+     */
+    private static final int MAX_HOPS = 2;
+    
+    /**
+     * Oldest entry format whose readers fetch thumbnails by hash; older
+     * followers get the data inline
+     */
+    private static final int THUMBNAIL_HASH_FORMAT = 2;
+    
+    private static final long HELLO_PAGE_SIZE = 200;
+    
+    /**
+     * Thumbnail hashes already asked for, with the time of the request
+     */
+    private static final Map<String, Long> sRequestedThumbnails = new HashMap<String, Long>();
+    
+    private static final OutboundQueue sOutbound = new OutboundQueue();
+    
+    private static final Random sRandom = new Random();
+    
+    // Forwarding that the hop limit and ledger made unnecessary
+    private static final AtomicLong sSuppressedFacts = new AtomicLong();
+    private static final AtomicLong sSuppressedPosts = new AtomicLong();
     
     private final Musubi mMusubi;
     private final Context mContext;
@@ -59,29 +120,455 @@ public class SocialClient {
     private final FeedManager mFeedManager;
     private final FollowerManager mFollowerManager;
     private final FollowingManager mFollowingManager;
+    private final ThumbnailManager mThumbnailManager;
+    private final SeenObjManager mSeenObjManager;
+    private final ForwardedManager mForwardedManager;
+    private final int mMaxPayloadBytes;
     
+    /**
+     * Use the shared instance from {@link App#getSocialClient(Context)}
+     * @param musubi Musubi instance to post through
+     * @param context Application context
+     */
     public SocialClient(Musubi musubi, Context context) {
         mMusubi = musubi;
         mContext = context;
         mDatabaseSource = App.getDatabaseSource(mContext);
-        mEntryManager = new EntryManager(mDatabaseSource);
-        mUserEntryManager = new UserEntryManager(mDatabaseSource);
-        mFeedManager = new FeedManager(mDatabaseSource);
-        mFollowerManager = new FollowerManager(mDatabaseSource);
-        mFollowingManager = new FollowingManager(mDatabaseSource);
+        ManagerRegistry managers = App.getManagers(mContext);
+        mEntryManager = managers.getEntryManager();
+        mUserEntryManager = managers.getUserEntryManager();
+        mFeedManager = managers.getFeedManager();
+        mFollowerManager = managers.getFollowerManager();
+        mFollowingManager = managers.getFollowingManager();
+        mThumbnailManager = managers.getThumbnailManager();
+        mSeenObjManager = managers.getSeenObjManager();
+        mForwardedManager = managers.getForwardedManager();
+        mMaxPayloadBytes = mContext.getResources().getInteger(R.integer.max_entry_payload_bytes);
     }
     
     /**
-     * Sends a collection of entries to entry followers
+     * Sends a collection of entries to entry followers. Entries are queued
+     * briefly and merged with others pending for the same followers.
      * @param entries List of entries
      * @param followers The followers to contact
      * @param type Type of the entry
      * @param exclude A user to exclude, if any
      */
     public void postToFollowers(List<Entry> entries, List<MFollower> followers, EntryType type, String exclude) {
+        List<MFollower> recipients = new ArrayList<MFollower>(followers.size());
+        for (MFollower follower : followers) {
+            if (exclude != null && follower.userId.equals(exclude)) continue;
+            recipients.add(follower);
+        }
+        sOutbound.add(this, type, recipients, entries, MAX_HOPS, false);
+    }
+    
+    /**
+     * Pass received entries on to followers. Each owner of an entry is
+     * forwarded to a follower at most once, and never to the owner itself.
+     * Followers left with the same entries share one queued batch.
+     * @param entries List of received entries, each known locally
+     * @param followers The followers to contact
+     * @param type Type of the entries
+     * @param exclude A user to exclude, if any
+     * @param hops Number of times the entries may still be sent on
+     */
+    private void forwardToFollowers(List<Entry> entries, List<MFollower> followers,
+            EntryType type, String exclude, int hops) {
+        if (entries.isEmpty()) return;
+        long[] entryIds = new long[entries.size()];
+        for (int i = 0; i < entryIds.length; i++) {
+            MEntry dbEntry = mEntryManager.getCachedEntry(type, entries.get(i).name);
+            entryIds[i] = (dbEntry != null) ? dbEntry.id : -1;
+        }
+        
+        Map<String, List<MFollower>> groups = new LinkedHashMap<String, List<MFollower>>();
+        Map<String, List<Entry>> groupEntries = new HashMap<String, List<Entry>>();
+        long suppressedFacts = 0;
+        long suppressedPosts = 0;
+        for (MFollower follower : followers) {
+            if (exclude != null && follower.userId.equals(exclude)) continue;
+            List<Entry> fresh = new ArrayList<Entry>();
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < entryIds.length; i++) {
+                if (entryIds[i] < 0) continue;
+                Entry entry = entries.get(i);
+                Set<String> owners = new LinkedHashSet<String>();
+                for (String owner : entry.owners) {
+                    if (owner.equals(follower.userId) ||
+                            mForwardedManager.isForwarded(follower.id, entryIds[i], owner)) {
+                        suppressedFacts++;
+                        continue;
+                    }
+                    owners.add(owner);
+                    key.append(owner).append('\n');
+                }
+                if (owners.isEmpty()) continue;
+                key.append(entry.name).append('\0');
+                Entry copy = new Entry();
+                copy.type = entry.type;
+                copy.name = entry.name;
+                copy.owned = entry.owned;
+                copy.owners = owners;
+                copy.metadata = entry.metadata;
+                copy.thumbnailHash = entry.thumbnailHash;
+                fresh.add(copy);
+            }
+            if (fresh.isEmpty()) {
+                suppressedPosts++;
+                continue;
+            }
+            String groupKey = key.toString();
+            List<MFollower> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<MFollower>();
+                groups.put(groupKey, group);
+                groupEntries.put(groupKey, fresh);
+            }
+            group.add(follower);
+        }
+        for (Map.Entry<String, List<MFollower>> group : groups.entrySet()) {
+            sOutbound.add(this, type, group.getValue(), groupEntries.get(group.getKey()), hops, true);
+        }
+        Log.d(TAG, "forwarding saved " + suppressedFacts + " owners and " + suppressedPosts +
+                " posts (total " + sSuppressedFacts.addAndGet(suppressedFacts) + " owners, " +
+                sSuppressedPosts.addAndGet(suppressedPosts) + " posts)");
+    }
+    
+    /**
+     * Record in the forwarding ledger that followers were sent entries'
+     * owners. Called once the entries have been posted.
+     * @param entries List of posted entries
+     * @param followers The followers they were posted to
+     * @param type Type of the entries
+     */
+    void markForwarded(List<Entry> entries, List<MFollower> followers, EntryType type) {
+        SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
+        TransactionHooks.begin(db);
+        try {
+            for (Entry entry : entries) {
+                MEntry dbEntry = mEntryManager.getCachedEntry(type, entry.name);
+                if (dbEntry == null) continue;
+                for (MFollower follower : followers) {
+                    for (String owner : entry.owners) {
+                        if (!owner.equals(follower.userId)) {
+                            mForwardedManager.markForwarded(follower.id, dbEntry.id, owner);
+                        }
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            TransactionHooks.end(db);
+        }
+    }
+    
+    /**
+     * @return Number of entry owners not forwarded because the follower
+     * already had them, since the process started
+     */
+    public static long getSuppressedFacts() {
+        return sSuppressedFacts.get();
+    }
+    
+    /**
+     * @return Number of posts to followers not made because there was
+     * nothing new to forward, since the process started
+     */
+    public static long getSuppressedPosts() {
+        return sSuppressedPosts.get();
+    }
+    
+    /**
+     * Post entries to followers right away. Sets larger than the maximum
+     * payload size go out as several numbered chunks, each of which can be
+     * applied on its own.
+     * @param entries List of entries
+     * @param followers The followers to contact
+     * @param type Type of the entry
+     * @param hops Number of times the entries may still be sent on
+     */
+    void sendEntries(List<Entry> entries, List<MFollower> followers, EntryType type, int hops) {
+        List<MFollower> current = new ArrayList<MFollower>(followers.size());
+        List<MFollower> legacy = new ArrayList<MFollower>();
+        for (MFollower follower : followers) {
+            if (follower.format < THUMBNAIL_HASH_FORMAT) {
+                legacy.add(follower);
+            } else {
+                current.add(follower);
+            }
+        }
+        if (!current.isEmpty()) {
+            ChunkedPost post = new ChunkedPost(current, type, hops, false);
+            post.addAll(entries);
+            post.finish();
+        }
+        if (!legacy.isEmpty()) {
+            // these cannot fetch thumbnails by hash, so they get the data
+            ChunkedPost post = new ChunkedPost(legacy, type, hops, true);
+            post.addAll(entries);
+            post.finish();
+        }
+    }
+    
+    /**
+     * Gathers entries into chunks whose JSON stays under the maximum payload
+     * size, and posts each chunk once the next one starts, so a large
+     * response can be built a page at a time. The binary format is smaller,
+     * so its chunks fit as well. Chunks of one response share a response id,
+     * and the last one also carries the number of chunks.
+     */
+    private class ChunkedPost {
+        private final List<MFollower> mFollowers;
+        private final EntryType mType;
+        private final int mHops;
+        private final boolean mInlineThumbnails;
+        private List<Entry> mChunk = new ArrayList<Entry>();
+        private long mSize;
+        private String mResponse;
+        private int mChunks;
+        private int mEntries;
+        
+        /**
+         * @param followers The followers to contact
+         * @param type Type of the entries
+         * @param hops Number of times the entries may still be sent on
+         * @param inlineThumbnails true to send thumbnail data instead of hashes
+         */
+        ChunkedPost(List<MFollower> followers, EntryType type, int hops, boolean inlineThumbnails) {
+            mFollowers = followers;
+            mType = type;
+            mHops = hops;
+            mInlineThumbnails = inlineThumbnails;
+        }
+        
+        /**
+         * Add entries, posting every chunk that fills up
+         * @param entries List of entries
+         */
+        void addAll(List<Entry> entries) {
+            if (mInlineThumbnails) {
+                entries = withInlineThumbnails(entries);
+            }
+            for (Entry entry : entries) {
+                long entrySize = estimateJsonSize(entry);
+                if (!mChunk.isEmpty() && mSize + entrySize > mMaxPayloadBytes) {
+                    if (mResponse == null) {
+                        mResponse = Long.toHexString(sRandom.nextLong());
+                    }
+                    post(false);
+                }
+                mChunk.add(entry);
+                mSize += entrySize;
+            }
+        }
+        
+        /**
+         * Post the last chunk
+         * @return Number of entries posted in all
+         */
+        int finish() {
+            if (!mChunk.isEmpty()) {
+                post(true);
+            }
+            if (mChunks > 1) {
+                Log.d(TAG, "sent " + mEntries + " entries in " + mChunks + " chunks");
+            }
+            return mEntries;
+        }
+        
+        private void post(boolean last) {
+            postChunk(mChunk, mFollowers, mType, mHops, mResponse, mChunks, last ? mChunks + 1 : 0);
+            mEntries += mChunk.size();
+            mChunks++;
+            mChunk = new ArrayList<Entry>();
+            mSize = 0;
+        }
+    }
+    
+    /**
+     * Post one chunk of entries to followers, in the best format each
+     * follower reads. Each format is only built if some follower needs it.
+     * @param chunk List of entries
+     * @param followers The followers to contact
+     * @param type Type of the entries
+     * @param hops Number of times the entries may still be sent on
+     * @param response Id shared by the chunks of one response, or null if
+     * the entries fit in one obj
+     * @param index Index of this chunk
+     * @param chunks Number of chunks in the response, or 0 if not known yet
+     */
+    private void postChunk(List<Entry> chunk, List<MFollower> followers, EntryType type,
+            int hops, String response, int index, int chunks) {
+        MemObj jsonObj = null;
+        MemObj binaryObj = null;
+        MemObj deflatedObj = null;
+        for (MFollower follower : followers) {
+            MemObj obj;
+            if (follower.format >= EntryCodec.VERSION &&
+                    follower.compression == MFollower.COMPRESSION_DEFLATE) {
+                if (deflatedObj == null) {
+                    deflatedObj = encodeBinaryEntries(
+                            chunk, type, entriesHeader(type, hops, response, index, chunks), true);
+                }
+                obj = deflatedObj;
+            } else if (follower.format >= EntryCodec.VERSION) {
+                if (binaryObj == null) {
+                    binaryObj = encodeBinaryEntries(
+                            chunk, type, entriesHeader(type, hops, response, index, chunks), false);
+                }
+                obj = binaryObj;
+            } else {
+                if (jsonObj == null) {
+                    jsonObj = encodeJsonEntries(
+                            chunk, entriesHeader(type, hops, response, index, chunks));
+                    if (jsonObj == null) continue;
+                }
+                obj = jsonObj;
+            }
+            postAfterCommit(mMusubi.getFeed(follower.feedUri), obj);
+        }
+    }
+    
+    /**
+     * Replace thumbnail hashes with the stored thumbnail data, for followers
+     * that cannot request thumbnails. Entries whose thumbnail is not stored
+     * here are sent without one.
+     * @param entries List of entries
+     * @return Copies of the entries that carry their thumbnail as extra data
+     */
+    private List<Entry> withInlineThumbnails(List<Entry> entries) {
+        List<Entry> inline = new ArrayList<Entry>(entries.size());
+        Map<String, byte[]> thumbnails = new HashMap<String, byte[]>();
+        for (Entry entry : entries) {
+            if (entry.thumbnailHash == null) {
+                inline.add(entry);
+                continue;
+            }
+            if (!thumbnails.containsKey(entry.thumbnailHash)) {
+                thumbnails.put(entry.thumbnailHash,
+                        mThumbnailManager.getThumbnail(entry.thumbnailHash));
+            }
+            Entry copy = new Entry();
+            copy.type = entry.type;
+            copy.name = entry.name;
+            copy.owned = entry.owned;
+            copy.owners = entry.owners;
+            copy.metadata = entry.metadata;
+            copy.extra = thumbnails.get(entry.thumbnailHash);
+            inline.add(copy);
+        }
+        return inline;
+    }
+    
+    /**
+     * Post an obj once the current transaction commits, or right away if
+     * there is none, so work that is rolled back and retried is not sent
+     * twice
+     * @param feed Feed to post to
+     * @param obj The obj to post
+     */
+    private static void postAfterCommit(final DbFeed feed, final MemObj obj) {
+        TransactionHooks.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                feed.postObj(obj);
+            }
+        });
+    }
+    
+    /**
+     * Report new content once the current transaction commits, since
+     * readers cannot see it before then
+     */
+    private void notifyNewContent() {
+        TransactionHooks.onCommit(new Runnable() {
+            @Override
+            public void run() {
+                ChangeDispatcher.getInstance(mContext).notifyChange(App.URI_NEW_CONTENT);
+            }
+        });
+    }
+    
+    /**
+     * @param entry Entry to send
+     * @return Upper bound on the size of the entry in UTF-8 encoded JSON
+     */
+    private static long estimateJsonSize(Entry entry) {
+        long size = 64 + jsonStringSize(entry.name); // keys, flags and punctuation
+        if (entry.metadata != null) size += jsonStringSize(entry.metadata);
+        if (entry.thumbnailHash != null) size += jsonStringSize(entry.thumbnailHash);
+        if (entry.extra != null) {
+            // Base64 breaks lines every 76 characters, and JSON escapes them
+            long base64 = (entry.extra.length + 2) / 3 * 4;
+            size += base64 + (base64 / 76 + 1) * 2;
+        }
+        for (String owner : entry.owners) {
+            size += jsonStringSize(owner) + 3;
+        }
+        return size;
+    }
+    
+    /**
+     * @param value String to write
+     * @return Upper bound on the UTF-8 bytes of the string once escaped in
+     * JSON, not counting the quotes
+     */
+    private static long jsonStringSize(String value) {
+        long size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                size += 6; // written as a six character unicode escape
+            } else if (c == '"' || c == '\\' || c == '/') {
+                size += 2;
+            } else if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                size += 2; // a surrogate pair is 4 bytes
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * Build the JSON fields shared by both entry formats
+     * @param type Type of the entries
+     * @param hops Number of times the entries may still be sent on
+     * @param response Id shared by the chunks of one response, or null if
+     * the entries fit in one obj
+     * @param chunk Index of this chunk
+     * @param chunks Number of chunks in the response, or 0 if not known yet
+     * @return JSONObject to add the entries to
+     */
+    private JSONObject entriesHeader(EntryType type, int hops, String response, int chunk, int chunks) {
         JSONObject json = new JSONObject();
         try {
             json.put(TYPE, type.name());
+            json.put(HOPS, hops);
+            if (response != null) {
+                json.put(RESPONSE, response);
+                json.put(CHUNK, chunk);
+                if (chunks > 0) {
+                    json.put(CHUNKS, chunks);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e); // keys are never null
+        }
+        return json;
+    }
+    
+    /**
+     * Build an entries obj that carries the entries as JSON
+     * @param entries List of entries
+     * @param json Header from {@link #entriesHeader(EntryType, int, String, int, int)}
+     * @return MemObj, or null if the JSON could not be built
+     */
+    private MemObj encodeJsonEntries(List<Entry> entries, JSONObject json) {
+        try {
             JSONArray arr = new JSONArray();
             for (Entry entry : entries) {
                 // Single entry
@@ -92,13 +579,47 @@ public class SocialClient {
             json.put(ENTRIES, arr);
         } catch(JSONException e) {
             Log.e(TAG, "json issue with post to followers", e);
-            return;
+            return null;
         }
-        for (MFollower follower : followers) {
-            if (exclude != null && follower.userId.equals(exclude)) continue;
-            DbFeed feed = mMusubi.getFeed(follower.feedUri);
-            feed.postObj(new MemObj(ENTRIES_TYPE, json));
+        return new MemObj(ENTRIES_TYPE, json);
+    }
+    
+    /**
+     * Build an entries obj that carries the entries in the raw field,
+     * encoded by {@link EntryCodec}
+     * @param entries List of entries
+     * @param type Type of the entries
+     * @param json Header from {@link #entriesHeader(EntryType, int, String, int, int)}
+     * @param deflate true to compress the data if that makes it smaller
+     * @return MemObj
+     */
+    private MemObj encodeBinaryEntries(
+            List<Entry> entries, EntryType type, JSONObject json, boolean deflate) {
+        long start = SystemClock.uptimeMillis();
+        byte[] raw = EntryCodec.encode(type, entries);
+        Log.d(TAG, "encoded " + entries.size() + " entries into " + raw.length +
+                " bytes in " + (SystemClock.uptimeMillis() - start) + "ms");
+        boolean deflated = false;
+        if (deflate) {
+            start = SystemClock.uptimeMillis();
+            byte[] compressed = EntryCodec.deflate(raw);
+            Log.d(TAG, "deflated " + raw.length + " bytes to " + compressed.length +
+                    " (" + (100 * compressed.length / Math.max(raw.length, 1)) + "%) in " +
+                    (SystemClock.uptimeMillis() - start) + "ms");
+            if (compressed.length < raw.length) {
+                raw = compressed;
+                deflated = true;
+            }
+        }
+        try {
+            json.put(FORMAT, EntryCodec.VERSION);
+            if (deflated) {
+                json.put(COMPRESSION, DEFLATE);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e); // keys are never null
         }
+        return new MemObj(ENTRIES_TYPE, json, raw);
     }
     
     /**
@@ -112,6 +633,8 @@ public class SocialClient {
         try {
             json.put(HELLO, true);
             json.put(TYPE, type.name());
+            json.put(FORMAT, EntryCodec.VERSION);
+            json.put(COMPRESSION, new JSONArray().put(DEFLATE));
             JSONArray to = new JSONArray();
             for (String recipient : recipients) {
                 to.put(recipient);
@@ -121,6 +644,17 @@ public class SocialClient {
                 Log.d(TAG, "no hello recipients");
                 return;
             }
+            // Ask for everything from those I hold nothing from, e.g. after
+            // my data was lost; the others only send what changed
+            JSONArray full = new JSONArray();
+            for (String recipient : recipients) {
+                if (!mUserEntryManager.hasUserEntries(recipient)) {
+                    full.put(recipient);
+                }
+            }
+            if (full.length() > 0) {
+                json.put(FULL, full);
+            }
         } catch (JSONException e) {
             Log.e(TAG, "json issue with hello post", e);
             return;
@@ -135,89 +669,175 @@ public class SocialClient {
      * @param obj DbObj for this app
      */
     public void handleIncomingObj(DbObj obj) {
+        // Redeliveries and rescans are dropped before any work is done
+        String hash = obj.getUniversalHashString();
+        if (hash == null) {
+            dispatchObj(obj);
+            return;
+        }
+        SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
+        TransactionHooks.begin(db);
+        try {
+            if (!mSeenObjManager.markSeen(hash)) {
+                Log.d(TAG, "already handled " + hash);
+            } else {
+                dispatchObj(obj);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            TransactionHooks.end(db);
+        }
+    }
+    
+    /**
+     * Hand an obj to the handler for its kind
+     * @param obj DbObj for this app
+     */
+    private void dispatchObj(final DbObj obj) {
         JSONObject json = obj.getJson();
         if (json == null) {
             Log.d(TAG, "no json");
             return;
         }
-        if (json.has(HELLO) && json.has(TYPE) && json.has(TO) && !obj.getSender().isOwned()) {
-            JSONArray to = json.optJSONArray(TO);
-            for (int i = 0; i < to.length(); i++) {
-                String rec = to.optString(i);
-                DbIdentity recipient = mMusubi.userForGlobalId(
-                        obj.getContainingFeed().getUri(), rec);
-                if (recipient != null && recipient.isOwned()) {
-                    // only handle one request to me, since there's only 1 me
-                    handleHello(obj, EntryType.valueOf(json.optString(TYPE)));
-                    break;
-                }
+        if (THUMBNAIL_TYPE.equals(obj.getType())) {
+            handleThumbnailObj(obj, json);
+        } else if (json.has(HELLO) && json.has(TYPE) && json.has(TO) && !obj.getSender().isOwned()) {
+            // only handle one request to me, since there's only 1 me
+            if (isAddressedToMe(obj, json.optJSONArray(TO))) {
+                // answered once the seen mark is committed, outside any
+                // transaction, so each chunk goes out as soon as it is built
+                final EntryType type = EntryType.valueOf(json.optString(TYPE));
+                TransactionHooks.onCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleHello(obj, type);
+                    }
+                });
             }
-        } else if (json.has(TYPE) && json.has(ENTRIES)) {
+        } else if (json.has(TYPE) && (json.has(ENTRIES) || json.has(FORMAT))) {
             Uri feedUri = obj.getContainingFeed().getUri();
             MFeed feed = mFeedManager.getFeed(feedUri);
             // only process entries sent to my own feeds for the type
             if (feed != null && feed.type.ordinal() == json.optInt(TYPE)) {
-                handleEntries(obj, json.optJSONArray(ENTRIES), EntryType.valueOf(json.optString(TYPE)));
+                List<Entry> entries = parseEntries(obj, json);
+                if (entries != null) {
+                    handleEntries(obj, entries, EntryType.valueOf(json.optString(TYPE)));
+                }
             }
         }
     }
     
     /**
-     * Handle a "hello" DbObj by sending back my and my friends' content
+     * Read the entries from an entries obj in whichever format it was sent
+     * @param obj The original DbObj
+     * @param json JSON of the obj
+     * @return List of entries, or null if they could not be read
+     */
+    private List<Entry> parseEntries(DbObj obj, JSONObject json) {
+        long start = SystemClock.uptimeMillis();
+        List<Entry> entries;
+        int size;
+        if (json.optInt(FORMAT, 0) > 0) {
+            byte[] raw = obj.getRaw();
+            if (raw == null) {
+                Log.w(TAG, "entries obj is missing its data");
+                return null;
+            }
+            size = raw.length;
+            try {
+                if (DEFLATE.equals(json.optString(COMPRESSION))) {
+                    raw = EntryCodec.inflate(raw, MAX_INFLATED_BYTES);
+                    Log.d(TAG, "inflated " + size + " bytes to " + raw.length + " in " +
+                            (SystemClock.uptimeMillis() - start) + "ms");
+                }
+                entries = EntryCodec.decode(raw);
+            } catch (IOException e) {
+                Log.e(TAG, "binary entry parse error", e);
+                return null;
+            }
+        } else {
+            JSONArray dbEntries = json.optJSONArray(ENTRIES);
+            entries = new LinkedList<Entry>();
+            Map<String, Set<String>> ownerSets = new HashMap<String, Set<String>>();
+            try {
+                for (int i = 0; i < dbEntries.length(); i++) {
+                    JSONObject single = dbEntries.getJSONObject(i);
+                    Log.d(TAG, "entry: " + single.toString());
+                    entries.add(jsonToEntry(single, ownerSets));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "json entry parse error", e);
+                return null;
+            }
+            size = json.toString().length();
+        }
+        Log.d(TAG, "parsed " + entries.size() + " entries from " + size +
+                " bytes in " + (SystemClock.uptimeMillis() - start) + "ms");
+        if (json.has(RESPONSE)) {
+            // chunks are independent, so they are applied as they arrive
+            Log.d(TAG, "chunk " + (json.optInt(CHUNK) + 1) +
+                    (json.has(CHUNKS) ? " of " + json.optInt(CHUNKS) : "") +
+                    " in response " + json.optString(RESPONSE));
+        }
+        return entries;
+    }
+    
+    /**
+     * Handle a "hello" DbObj by sending back my and my friends' content.
+     * Runs outside any transaction, so chunks are posted as they fill up
+     * rather than held until a commit.
      * @param obj The original DbObj
      * @param type EntryType of the content
      */
     private void handleHello(DbObj obj, EntryType type) {
         // Add the follower if not already known
-        mFollowerManager.ensureFollower(
-                type, obj.getSender().getId(), obj.getContainingFeed().getUri());
+        JSONObject json = obj.getJson();
+        MFollower follower = mFollowerManager.ensureFollower(type, obj.getSender().getId(),
+                obj.getContainingFeed().getUri(), json.optInt(FORMAT, 0), compressionOf(json));
         
-        // Populate the entries (mine and my friends' only)
-        List<MEntry> dbEntries = mEntryManager.getOneLevelEntries(type);
-        List<Entry> entries = new LinkedList<Entry>();
-        for (MEntry dbEntry : dbEntries) { // TODO: this is inefficient
-            if (dbEntry.followingCount > 0L) {
-                entries.add(dbEntryToEntry(dbEntry));
-            }
-        }
+        // Populate the entries (mine and my friends' only). A follower that
+        // has been answered before only gets entries changed since, unless
+        // it asks for everything again.
+        JSONArray full = json.optJSONArray(FULL);
+        long since = (full != null && isAddressedToMe(obj, full)) ? 0 : follower.syncSequence;
+        // hellos are answered on the writer, so buffered counts can be
+        // written here and count as changes up to the sequence
+        mEntryManager.flushCounts();
+        long sequence = mEntryManager.getLatestChangeSequence();
         
-        // Add a single follower to notify (the hello sender)
-        List<MFollower> followers = new LinkedList<MFollower>();
-        SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
-        try {
-            db.beginTransaction();
-            MFollower follower = mFollowerManager.getFollower(type, obj.getSender().getId());
-            if (follower != null) {
-                followers.add(follower);
-            }
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+        // Read a page at a time, so only the chunk being filled is held
+        // as entries
+        ChunkedPost post = new ChunkedPost(Collections.singletonList(follower), type, MAX_HOPS,
+                follower.format < THUMBNAIL_HASH_FORMAT);
+        long after = 0;
+        while (true) {
+            List<MEntry> page = mEntryManager.getOneLevelEntries(type, since, after, HELLO_PAGE_SIZE);
+            if (page.isEmpty()) break;
+            post.addAll(dbEntriesToEntries(page));
+            if (page.size() < HELLO_PAGE_SIZE) break;
+            after = page.get(page.size() - 1).id;
         }
+        int sent = post.finish();
+        Log.d(TAG, "hello response to " + follower.userId + ": " + sent +
+                (since > 0 ? " changed entries" : " entries (full)"));
         
-        postToFollowers(entries, followers, type, null);
+        // Remember what has been sent so the next hello is a delta. Saved
+        // only after the last chunk is out, so a failure part way through
+        // leaves the next hello to send it all again.
+        if (sequence != follower.syncSequence) {
+            follower.syncSequence = sequence;
+            mFollowerManager.updateFollower(follower);
+        }
     }
     
     /**
      * Handle a collection of entries sent here. This includes notifying my followers as well.
      * @param obj The original DbObj
-     * @param dbEntries JSONArray of entries
+     * @param entries List of received entries
      * @param type EntryType of the content
      */
-    private void handleEntries(DbObj obj, JSONArray dbEntries, EntryType type) {
+    private void handleEntries(DbObj obj, List<Entry> entries, EntryType type) {
         // TODO: finish this
-        List<Entry> entries = new LinkedList<Entry>();
-        try {
-            for (int i = 0; i < dbEntries.length(); i++) {
-                JSONObject single = dbEntries.getJSONObject(i);
-                Log.d(TAG, "entry: " + single.toString());
-                entries.add(jsonToEntry(single));
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "json entry parse error", e);
-            return;
-        }
-        
         // get the followers
         MFeed typeFeed = mFeedManager.getFeed(type);
         Set<String> following = new HashSet<String>();
@@ -230,6 +850,7 @@ public class SocialClient {
         
         // ensure that we track all owners
         List<Entry> outgoing = new LinkedList<Entry>();
+        Set<String> missingThumbnails = new HashSet<String>();
         SQLiteDatabase db = mDatabaseSource.getWritableDatabase();
         for (Entry entry : entries) {
             for (String owner : entry.owners) {
@@ -237,16 +858,29 @@ public class SocialClient {
                         mEntryManager, type, entry.name, entry.metadata, false, owner, following.contains(owner));
             }
             
+            // thumbnails are shared by hash and fetched once if missing
+            String thumbnailHash = resolveThumbnail(entry);
+            if (thumbnailHash != null) {
+                MEntry dbEntry = mEntryManager.getCachedEntry(type, entry.name);
+                if (dbEntry != null) {
+                    dbEntry.thumbnailHash = thumbnailHash;
+                    mEntryManager.updateThumbnail(dbEntry);
+                }
+                if (!mThumbnailManager.hasThumbnail(thumbnailHash)) {
+                    missingThumbnails.add(thumbnailHash);
+                }
+            }
+            
             // add to report list if owned by direct following
             if (entry.owned) {
                 MEntry dbEntry = null;
                 try {
                     // unfortunately need a transaction because of weak consistency
-                    db.beginTransaction();
-                    dbEntry = mEntryManager.getEntry(type, entry.name);
+                    TransactionHooks.begin(db);
+                    dbEntry = mEntryManager.getCachedEntry(type, entry.name);
                     db.setTransactionSuccessful();
                 } finally {
-                    db.endTransaction();
+                    TransactionHooks.end(db);
                 }
                 // next level ownership must be relative to me
                 entry.owned = (dbEntry != null) ? dbEntry.owned : false;
@@ -254,10 +888,188 @@ public class SocialClient {
             }
         }
         
-        mContext.getContentResolver().notifyChange(App.URI_NEW_CONTENT, null);
+        mEntryManager.flushCounts();
+        notifyNewContent();
+        
+        requestThumbnails(obj, missingThumbnails);
         
-        // notify all followers
-        postToFollowers(outgoing, mFollowerManager.getFollowers(type), type, obj.getSender().getId());
+        // pass on what my followers haven't heard, while hops remain
+        int hops = obj.getJson().optInt(HOPS, MAX_HOPS);
+        List<MFollower> followers = mFollowerManager.getFollowers(type);
+        if (hops > 1) {
+            forwardToFollowers(outgoing, followers, type, obj.getSender().getId(), hops - 1);
+        } else if (!outgoing.isEmpty()) {
+            Log.d(TAG, "not forwarding " + outgoing.size() + " entries, out of hops");
+            String sender = obj.getSender().getId();
+            long suppressed = 0;
+            for (MFollower follower : followers) {
+                if (!follower.userId.equals(sender)) suppressed++;
+            }
+            sSuppressedPosts.addAndGet(suppressed);
+        }
+    }
+    
+    /**
+     * Work out which stored thumbnail a received entry refers to. Inline
+     * thumbnails from older clients are stored and replaced by their hash.
+     * @param entry Received Entry
+     * @return Thumbnail hash, or null if the entry has none
+     */
+    private String resolveThumbnail(Entry entry) {
+        if (entry.extra != null) {
+            entry.thumbnailHash = mThumbnailManager.saveThumbnail(entry.extra);
+            entry.extra = null;
+        } else if (entry.thumbnailHash != null && !isThumbnailHash(entry.thumbnailHash)) {
+            Log.w(TAG, "ignoring bad thumbnail hash for " + entry.name);
+            entry.thumbnailHash = null;
+        }
+        return entry.thumbnailHash;
+    }
+    
+    /**
+     * Ask the sender of an obj for thumbnails that are not stored here yet
+     * @param obj The DbObj that referenced the thumbnails
+     * @param hashes Thumbnail hashes to fetch
+     */
+    private void requestThumbnails(DbObj obj, Set<String> hashes) {
+        final JSONArray request = new JSONArray();
+        long now = System.currentTimeMillis();
+        synchronized(sRequestedThumbnails) {
+            Iterator<Long> requested = sRequestedThumbnails.values().iterator();
+            while (requested.hasNext()) {
+                if (now - requested.next() > THUMBNAIL_RETRY_MS) {
+                    requested.remove();
+                }
+            }
+            for (String hash : hashes) {
+                if (!sRequestedThumbnails.containsKey(hash)) {
+                    sRequestedThumbnails.put(hash, now);
+                    request.put(hash);
+                }
+            }
+        }
+        if (request.length() == 0) {
+            return;
+        }
+        // not requested after all if the transaction rolls back
+        TransactionHooks.onRollback(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(sRequestedThumbnails) {
+                    for (int i = 0; i < request.length(); i++) {
+                        sRequestedThumbnails.remove(request.optString(i));
+                    }
+                }
+            }
+        });
+        JSONObject json = new JSONObject();
+        try {
+            json.put(REQUEST, request);
+            json.put(TO, new JSONArray().put(obj.getSender().getId()));
+        } catch (JSONException e) {
+            Log.e(TAG, "json issue with thumbnail request", e);
+            return;
+        }
+        Log.d(TAG, "requesting " + request.length() + " thumbnails");
+        postAfterCommit(obj.getContainingFeed(), new MemObj(THUMBNAIL_TYPE, json));
+    }
+    
+    /**
+     * Handle a thumbnail obj: either a request for thumbnails I have, or the
+     * data for one I asked for
+     * @param obj The original DbObj
+     * @param json JSON of the obj
+     */
+    private void handleThumbnailObj(DbObj obj, JSONObject json) {
+        if (json.has(REQUEST) && json.has(TO)) {
+            if (!isAddressedToMe(obj, json.optJSONArray(TO))) {
+                return;
+            }
+            JSONArray request = json.optJSONArray(REQUEST);
+            DbFeed feed = obj.getContainingFeed();
+            for (int i = 0; i < request.length(); i++) {
+                String hash = request.optString(i);
+                byte[] data = mThumbnailManager.getThumbnail(hash);
+                if (data == null) continue;
+                JSONObject response = new JSONObject();
+                try {
+                    response.put(HASH, hash);
+                } catch (JSONException e) {
+                    Log.e(TAG, "json issue with thumbnail response", e);
+                    continue;
+                }
+                postAfterCommit(feed, new MemObj(THUMBNAIL_TYPE, response, data));
+            }
+        } else if (json.has(HASH)) {
+            final String hash = json.optString(HASH);
+            final Long requested;
+            synchronized(sRequestedThumbnails) {
+                requested = sRequestedThumbnails.remove(hash);
+            }
+            if (requested == null) {
+                return; // not mine, or already stored
+            }
+            // still wanted if storing it is rolled back
+            TransactionHooks.onRollback(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(sRequestedThumbnails) {
+                        sRequestedThumbnails.put(hash, requested);
+                    }
+                }
+            });
+            byte[] data = obj.getRaw();
+            if (data == null || !hash.equals(ThumbnailManager.hashOf(data))) {
+                Log.w(TAG, "thumbnail data does not match " + hash);
+                return;
+            }
+            mThumbnailManager.saveThumbnail(data);
+            notifyNewContent();
+        }
+    }
+    
+    /**
+     * @param hello JSON of a hello obj
+     * @return Best payload compression the hello sender can read
+     */
+    private static int compressionOf(JSONObject hello) {
+        JSONArray supported = hello.optJSONArray(COMPRESSION);
+        if (supported != null) {
+            for (int i = 0; i < supported.length(); i++) {
+                if (DEFLATE.equals(supported.optString(i))) {
+                    return MFollower.COMPRESSION_DEFLATE;
+                }
+            }
+        }
+        return MFollower.COMPRESSION_NONE;
+    }
+    
+    /**
+     * @param obj DbObj carrying a recipient list
+     * @param to JSONArray of recipient global ids
+     * @return true if one of the recipients is me
+     */
+    private boolean isAddressedToMe(DbObj obj, JSONArray to) {
+        Uri feedUri = obj.getContainingFeed().getUri();
+        for (int i = 0; i < to.length(); i++) {
+            DbIdentity recipient = mMusubi.userForGlobalId(feedUri, to.optString(i));
+            if (recipient != null && recipient.isOwned()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @param hash String received as a thumbnail hash
+     * @return true if it has the form of a hex SHA-1
+     */
+    private static boolean isThumbnailHash(String hash) {
+        if (hash.length() != 40) return false;
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) < 0) return false;
+        }
+        return true;
     }
     
     /**
@@ -276,7 +1088,9 @@ public class SocialClient {
                 owners.put(owner);
             }
             result.put(OWNERS, owners);
-            if (entry.extra != null) {
+            if (entry.thumbnailHash != null) {
+                result.put(THUMBNAIL, entry.thumbnailHash);
+            } else if (entry.extra != null) {
                 result.put(EXTRA, Base64.encodeToString(entry.extra, 0));
             }
             if (entry.metadata != null) {
@@ -291,22 +1105,36 @@ public class SocialClient {
     /**
      * Converts a received JSONObject into an Entry
      * @param json JSONObject received
+     * @param ownerSets Owner sets already read from the same message, keyed
+     * by their ids; entries with the same owners share one unmodifiable set
      * @return Entry object
      */
-    private Entry jsonToEntry(JSONObject json) {
+    private Entry jsonToEntry(JSONObject json, Map<String, Set<String>> ownerSets) {
         try {
             Entry result = new Entry();
             result.type = EntryType.values()[json.getInt(TYPE)];
             result.name = json.getString(NAME);
             result.owned = json.getBoolean(OWNED);
             JSONArray owners = json.getJSONArray(OWNERS);
-            result.owners = new HashSet<String>();
+            StringBuilder key = new StringBuilder();
             for (int i = 0; i < owners.length(); i++) {
-                result.owners.add(owners.getString(i));
+                key.append(owners.getString(i)).append('\n');
+            }
+            result.owners = ownerSets.get(key.toString());
+            if (result.owners == null) {
+                Set<String> set = new HashSet<String>();
+                for (int i = 0; i < owners.length(); i++) {
+                    set.add(owners.getString(i));
+                }
+                result.owners = Collections.unmodifiableSet(set);
+                ownerSets.put(key.toString(), result.owners);
             }
             if (json.has(EXTRA)) {
                 result.extra = Base64.decode(json.getString(EXTRA), 0);
             }
+            if (json.has(THUMBNAIL)) {
+                result.thumbnailHash = json.getString(THUMBNAIL);
+            }
             if (json.has(METADATA)) {
                 result.metadata = json.getString(METADATA);
             }
@@ -323,21 +1151,47 @@ public class SocialClient {
      * @return Entry object
      */
     public Entry dbEntryToEntry(MEntry dbEntry) {
+        List<MUserEntry> userEntries = mUserEntryManager.getUserEntries(dbEntry.id);
+        Set<String> owners = new HashSet<String>();
+        for (MUserEntry userEntry : userEntries) {
+            owners.add(userEntry.userId);
+        }
+        return dbEntryToEntry(dbEntry, owners);
+    }
+    
+    /**
+     * Convert database-backed MEntry objects into Entry objects, looking up
+     * the owners of all of them at once
+     * @param dbEntries List of MEntry objects
+     * @return List of Entry objects
+     */
+    private List<Entry> dbEntriesToEntries(List<MEntry> dbEntries) {
+        List<Long> ids = new ArrayList<Long>(dbEntries.size());
+        for (MEntry dbEntry : dbEntries) {
+            ids.add(dbEntry.id);
+        }
+        Map<Long, Set<String>> owners = mUserEntryManager.getUserIds(ids);
+        List<Entry> entries = new ArrayList<Entry>(dbEntries.size());
+        for (MEntry dbEntry : dbEntries) {
+            Set<String> entryOwners = owners.get(dbEntry.id);
+            entries.add(dbEntryToEntry(dbEntry,
+                    (entryOwners != null) ? entryOwners : new HashSet<String>()));
+        }
+        return entries;
+    }
+    
+    private Entry dbEntryToEntry(MEntry dbEntry, Set<String> owners) {
         Entry entry = new Entry();
         entry.type = dbEntry.type;
         entry.name = dbEntry.name;
         entry.owned = dbEntry.owned;
-        if (dbEntry.thumbnail != null) {
-            entry.extra = dbEntry.thumbnail;
+        if (dbEntry.thumbnailHash != null) {
+            entry.thumbnailHash = dbEntry.thumbnailHash;
         }
         if (dbEntry.metadata != null) {
             entry.metadata = dbEntry.metadata;
         }
-        List<MUserEntry> userEntries = mUserEntryManager.getUserEntries(dbEntry.id);
-        entry.owners = new HashSet<String>();
-        for (MUserEntry userEntry : userEntries) {
-            entry.owners.add(userEntry.userId);
-        }
+        entry.owners = owners;
         return entry;
     }
 }
@@ -0,0 +1,134 @@
+package mobisocial.rectacular.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Sends content change notifications at most once per window for each
+ * URI, so a burst of writes causes one reload, and keeps one observer per
+ * URI for everyone listening in this process.
+ */
+public class ChangeDispatcher {
+    private static final long WINDOW_MS = 500;
+
+    private static ChangeDispatcher sInstance;
+
+    /**
+     * Receives coalesced changes on the main thread
+     */
+    public interface OnChangeListener {
+        public void onChange(Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Set<Uri> mPending = new HashSet<Uri>();
+
+    // Only touched on the main thread
+    private final Map<Uri, UriObserver> mObservers = new HashMap<Uri, UriObserver>();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            List<Uri> uris;
+            synchronized(mPending) {
+                uris = new ArrayList<Uri>(mPending);
+                mPending.clear();
+            }
+            for (Uri uri : uris) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+    };
+
+    public static synchronized ChangeDispatcher getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ChangeDispatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ChangeDispatcher(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Report a change. Changes reported within the window after the first
+     * one go out together at the end of it. Safe to call from any thread.
+     * @param uri Uri of the changed content
+     */
+    public void notifyChange(Uri uri) {
+        synchronized(mPending) {
+            boolean idle = mPending.isEmpty();
+            mPending.add(uri);
+            if (idle) {
+                mHandler.postDelayed(mFlushTask, WINDOW_MS);
+            }
+        }
+    }
+
+    /**
+     * Start listening for changes. Must be called from the main thread, and
+     * matched by {@link #unregister(OnChangeListener)}.
+     * @param uri Uri of the content
+     * @param listener Listener to call
+     */
+    public void register(Uri uri, OnChangeListener listener) {
+        UriObserver observer = mObservers.get(uri);
+        if (observer == null) {
+            observer = new UriObserver(uri);
+            mObservers.put(uri, observer);
+            mResolver.registerContentObserver(uri, false, observer);
+        }
+        if (!observer.listeners.contains(listener)) {
+            observer.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Stop listening for changes on all URIs. Must be called from the main
+     * thread.
+     * @param listener Listener passed to {@link #register(Uri, OnChangeListener)}
+     */
+    public void unregister(OnChangeListener listener) {
+        Iterator<UriObserver> observers = mObservers.values().iterator();
+        while (observers.hasNext()) {
+            UriObserver observer = observers.next();
+            observer.listeners.remove(listener);
+            if (observer.listeners.isEmpty()) {
+                mResolver.unregisterContentObserver(observer);
+                observers.remove();
+            }
+        }
+    }
+
+    private class UriObserver extends ContentObserver {
+        final Uri uri;
+        final List<OnChangeListener> listeners = new ArrayList<OnChangeListener>();
+
+        UriObserver(Uri uri) {
+            super(mHandler);
+            this.uri = uri;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // listeners may unregister while being told
+            for (OnChangeListener listener : new ArrayList<OnChangeListener>(listeners)) {
+                listener.onChange(uri);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package mobisocial.rectacular.util;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+/**
+ * Joins pages of a list like MergeCursor, but copies strings straight
+ * from the current page's window, so binding a row does not allocate.
+ */
+public class PagedCursor extends MergeCursor {
+    private final Cursor[] mPages;
+    private Cursor mPage;
+
+    public PagedCursor(Cursor[] pages) {
+        super(pages);
+        mPages = pages;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mPage = null;
+        int start = 0;
+        for (Cursor page : mPages) {
+            if (page == null) continue;
+            int count = page.getCount();
+            if (newPosition < start + count) {
+                mPage = page;
+                break;
+            }
+            start += count;
+        }
+        return super.onMove(oldPosition, newPosition);
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        if (mPage != null) {
+            mPage.copyStringToBuffer(columnIndex, buffer);
+        } else {
+            super.copyStringToBuffer(columnIndex, buffer);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package mobisocial.rectacular.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mobisocial.rectacular.model.ThumbnailManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Loads stored thumbnails into image views off the UI thread. Decoded
+ * bitmaps are kept in a cache bounded by size, so scrolling back to a row
+ * does not touch the database again. Each thumbnail is read once however
+ * many views wait for it, and one that is not stored is not looked up
+ * again until new content arrives.
+ */
+public class ThumbnailLoader {
+    private final ThumbnailManager mThumbnailManager;
+    private final int mPlaceholder;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final LruCache<String, Bitmap> mCache;
+    // views waiting for each thumbnail being read, and thumbnails not stored
+    private final Map<String, List<ImageView>> mWaiting = new HashMap<String, List<ImageView>>();
+    private final Set<String> mMissing = new HashSet<String>();
+
+    /**
+     * @param thumbnailManager Source of thumbnail data
+     * @param placeholder Drawable resource shown until a thumbnail loads
+     */
+    public ThumbnailLoader(ThumbnailManager thumbnailManager, int placeholder) {
+        mThumbnailManager = thumbnailManager;
+        mPlaceholder = placeholder;
+        int maxBytes = (int)Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        mCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Show a thumbnail in a view. Must be called from the UI thread.
+     * @param view ImageView to show the thumbnail in
+     * @param thumbnailHash Hash of the thumbnail, or null to show the
+     * placeholder
+     */
+    public void load(final ImageView view, final String thumbnailHash) {
+        // the tag says which thumbnail a recycled view is waiting for
+        view.setTag(thumbnailHash);
+        Bitmap cached = (thumbnailHash != null) ? mCache.get(thumbnailHash) : null;
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        view.setImageResource(mPlaceholder);
+        if (thumbnailHash == null || mExecutor.isShutdown()) {
+            return;
+        }
+        synchronized(mWaiting) {
+            if (mMissing.contains(thumbnailHash)) {
+                return;
+            }
+            List<ImageView> views = mWaiting.get(thumbnailHash);
+            if (views != null) {
+                // already being read; this view gets it too
+                if (!views.contains(view)) {
+                    views.add(view);
+                }
+                return;
+            }
+            views = new ArrayList<ImageView>(1);
+            views.add(view);
+            mWaiting.put(thumbnailHash, views);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isWanted(thumbnailHash)) {
+                    return;
+                }
+                byte[] data = mThumbnailManager.getThumbnail(thumbnailHash);
+                final Bitmap bitmap = (data != null) ?
+                        BitmapFactory.decodeByteArray(data, 0, data.length) : null;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(thumbnailHash, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Look up thumbnails that were not stored again the next time they are
+     * shown. Call when new content arrives, since it may bring them.
+     */
+    public void retryMissing() {
+        synchronized(mWaiting) {
+            mMissing.clear();
+        }
+    }
+
+    /**
+     * Check before reading a thumbnail that some view still shows it, since
+     * views are recycled while reads wait in the queue
+     * @param thumbnailHash Hash of the thumbnail
+     * @return true if a view is still waiting for it
+     */
+    private boolean isWanted(String thumbnailHash) {
+        synchronized(mWaiting) {
+            List<ImageView> views = mWaiting.get(thumbnailHash);
+            if (views != null) {
+                for (ImageView view : views) {
+                    if (thumbnailHash.equals(view.getTag())) {
+                        return true;
+                    }
+                }
+            }
+            mWaiting.remove(thumbnailHash);
+            return false;
+        }
+    }
+
+    /**
+     * Show a thumbnail that was read in the views still waiting for it.
+     * Called on the UI thread.
+     * @param thumbnailHash Hash of the thumbnail
+     * @param bitmap The decoded thumbnail, or null if it is not stored
+     */
+    private void deliver(String thumbnailHash, Bitmap bitmap) {
+        List<ImageView> views;
+        synchronized(mWaiting) {
+            views = mWaiting.remove(thumbnailHash);
+            if (bitmap == null) {
+                // not fetched from the sender yet, or unreadable
+                mMissing.add(thumbnailHash);
+                return;
+            }
+        }
+        mCache.put(thumbnailHash, bitmap);
+        if (views == null) {
+            return;
+        }
+        for (ImageView view : views) {
+            if (thumbnailHash.equals(view.getTag())) {
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Stop loading. Views waiting for thumbnails keep their placeholder.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+        synchronized(mWaiting) {
+            mWaiting.clear();
+            mMissing.clear();
+        }
+    }
+}
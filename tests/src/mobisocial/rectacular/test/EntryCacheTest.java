@@ -0,0 +1,107 @@
+package mobisocial.rectacular.test;
+
+import mobisocial.rectacular.model.DBHelper;
+import mobisocial.rectacular.model.EntryManager;
+import mobisocial.rectacular.model.MEntry;
+import mobisocial.rectacular.model.TransactionHooks;
+import mobisocial.rectacular.model.MEntry.EntryType;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class EntryCacheTest extends AndroidTestCase {
+    private SQLiteDatabase mDb;
+    private EntryManager mEntryManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        new DBHelper(getContext()).onCreate(mDb);
+        mEntryManager = new EntryManager(mDb);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mEntryManager.close();
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testCommitKeepsEntry() {
+        TransactionHooks.begin(mDb);
+        try {
+            insert("committed");
+            mDb.setTransactionSuccessful();
+        } finally {
+            TransactionHooks.end(mDb);
+        }
+        MEntry cached = mEntryManager.getCachedEntry(EntryType.App, "committed");
+        assertNotNull(cached);
+        assertEquals(mEntryManager.getEntry(EntryType.App, "committed").id, cached.id);
+    }
+
+    /**
+     * An entry inserted by a transaction that rolls back must not be
+     * found afterwards
+     */
+    public void testRollbackLeavesNoPhantom() {
+        TransactionHooks.begin(mDb);
+        try {
+            insert("rolled back");
+            assertNotNull(mEntryManager.getCachedEntry(EntryType.App, "rolled back"));
+        } finally {
+            TransactionHooks.end(mDb);
+        }
+        assertEquals(null, mEntryManager.getCachedEntry(EntryType.App, "rolled back"));
+    }
+
+    /**
+     * A failed inner transaction rolls back the outer one, and with it
+     * every entry either of them cached
+     */
+    public void testNestedFailureLeavesNoPhantom() {
+        TransactionHooks.begin(mDb);
+        try {
+            insert("outer");
+            TransactionHooks.begin(mDb);
+            try {
+                insert("inner");
+            } finally {
+                TransactionHooks.end(mDb);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            TransactionHooks.end(mDb);
+        }
+        assertEquals(null, mEntryManager.getCachedEntry(EntryType.App, "outer"));
+        assertEquals(null, mEntryManager.getCachedEntry(EntryType.App, "inner"));
+    }
+
+    /**
+     * A change that rolls back must not stay in the cache over the row it
+     * was meant to change
+     */
+    public void testRollbackLeavesNoStaleEntry() {
+        insert("stale");
+        TransactionHooks.begin(mDb);
+        try {
+            mEntryManager.ensureEntry(EntryType.App, "stale", "pkg", false, false, true);
+            MEntry changed = mEntryManager.getCachedEntry(EntryType.App, "stale");
+            assertTrue(changed.owned);
+            assertEquals("pkg", changed.metadata);
+        } finally {
+            TransactionHooks.end(mDb);
+        }
+        MEntry cached = mEntryManager.getCachedEntry(EntryType.App, "stale");
+        assertFalse(cached.owned);
+        assertEquals(null, cached.metadata);
+    }
+
+    private void insert(String name) {
+        MEntry entry = new MEntry();
+        entry.type = EntryType.App;
+        entry.name = name;
+        entry.owned = false;
+        mEntryManager.insertEntry(entry);
+    }
+}
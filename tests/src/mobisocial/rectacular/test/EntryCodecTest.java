@@ -0,0 +1,81 @@
+package mobisocial.rectacular.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import mobisocial.rectacular.model.MEntry.EntryType;
+import mobisocial.rectacular.social.Entry;
+import mobisocial.rectacular.social.EntryCodec;
+
+public class EntryCodecTest extends TestCase {
+
+    /**
+     * An owner list and an owner bitset with the same bytes must not share
+     * one decoded owner set
+     */
+    public void testListAndBitsetWithSameBytes() throws Exception {
+        List<String> owners = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            owners.add(String.format("o%02d", i));
+        }
+        // every owner appears twice, so the owner table stays in name order
+        List<Entry> entries = new ArrayList<Entry>();
+        entries.add(entry("all", owners));
+        entries.add(entry("list", Arrays.asList("o08"))); // 01 08 as a list
+        entries.add(entry("bitset", Arrays.asList("o00", "o11"))); // 01 08 as a bitset
+        List<String> rest = new ArrayList<String>(owners);
+        rest.removeAll(Arrays.asList("o00", "o08", "o11"));
+        entries.add(entry("rest", rest));
+
+        assertRoundTrip(entries);
+    }
+
+    public void testRandomRoundTrip() throws Exception {
+        Random random = new Random(17);
+        for (int round = 0; round < 50; round++) {
+            int ownerCount = 1 + random.nextInt(40);
+            List<Entry> entries = new ArrayList<Entry>();
+            for (int i = 0; i < 100; i++) {
+                // mostly small sets, which are lists, with some large bitsets
+                int size = random.nextInt(4) == 0 ?
+                        1 + random.nextInt(ownerCount) : 1 + random.nextInt(Math.min(3, ownerCount));
+                List<String> owners = new ArrayList<String>();
+                for (int j = 0; j < size; j++) {
+                    owners.add("user" + random.nextInt(ownerCount));
+                }
+                Entry entry = entry("app " + i, owners);
+                entry.owned = random.nextBoolean();
+                if (random.nextBoolean()) {
+                    entry.metadata = "pkg.é" + i;
+                }
+                entries.add(entry);
+            }
+            assertRoundTrip(entries);
+        }
+    }
+
+    private static Entry entry(String name, List<String> owners) {
+        Entry entry = new Entry();
+        entry.type = EntryType.App;
+        entry.name = name;
+        entry.owners = new HashSet<String>(owners);
+        return entry;
+    }
+
+    private static void assertRoundTrip(List<Entry> entries) throws Exception {
+        List<Entry> decoded = EntryCodec.decode(EntryCodec.encode(EntryType.App, entries));
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry expected = entries.get(i);
+            Entry actual = decoded.get(i);
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.owned, actual.owned);
+            assertEquals(expected.metadata, actual.metadata);
+            assertEquals(expected.name, expected.owners, new HashSet<String>(actual.owners));
+        }
+    }
+}
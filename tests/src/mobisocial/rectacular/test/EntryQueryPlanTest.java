@@ -0,0 +1,115 @@
+package mobisocial.rectacular.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import mobisocial.rectacular.model.DBHelper;
+import mobisocial.rectacular.model.EntryManager;
+import mobisocial.rectacular.model.MEntry;
+import mobisocial.rectacular.model.EntryManager.TopEntriesQuery;
+import mobisocial.rectacular.model.MEntry.EntryType;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class EntryQueryPlanTest extends AndroidTestCase {
+    private SQLiteDatabase mDb;
+    private EntryManager mEntryManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        new DBHelper(getContext()).onCreate(mDb);
+        mEntryManager = new EntryManager(mDb);
+
+        // few distinct counts, so pages split runs of equal counts
+        Random random = new Random(21);
+        for (int i = 0; i < 500; i++) {
+            ContentValues values = new ContentValues();
+            values.put(MEntry.COL_TYPE, EntryType.values()[random.nextInt(2)].ordinal());
+            values.put(MEntry.COL_NAME, "entry " + i);
+            values.put(MEntry.COL_OWNED, random.nextInt(4) == 0 ? 1 : 0);
+            values.put(MEntry.COL_COUNT, random.nextInt(10));
+            values.put(MEntry.COL_FOLLOWING_COUNT, 0);
+            mDb.insert(MEntry.TABLE, null, values);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mEntryManager.close();
+        mDb.close();
+        super.tearDown();
+    }
+
+    /**
+     * The top list and each of its pages must walk the type_owned_count
+     * index, with no sort of the matching rows
+     */
+    public void testTopEntriesUseIndex() {
+        assertIndexWalk(new TopEntriesQuery(EntryType.App, null));
+        MEntry after = new MEntry();
+        after.count = 5L;
+        after.id = 100;
+        assertIndexWalk(new TopEntriesQuery(EntryType.App, after));
+    }
+
+    /**
+     * Reading the top list a page at a time must give the same rows in the
+     * same order as reading it at once
+     */
+    public void testPagesMatchFullList() {
+        List<Long> expected = ids(mEntryManager.getDiscoveredTopEntriesCursor(EntryType.App, null));
+        assertTrue(expected.size() > 0);
+
+        List<Long> paged = new ArrayList<Long>();
+        MEntry after = null;
+        while (true) {
+            Cursor c = mEntryManager.getDiscoveredTopEntriesCursor(EntryType.App, after, 7L);
+            try {
+                if (!c.moveToFirst()) break;
+                do {
+                    after = mEntryManager.fillInStandardFields(c);
+                    paged.add(after.id);
+                } while (c.moveToNext());
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals(expected, paged);
+    }
+
+    private void assertIndexWalk(TopEntriesQuery query) {
+        String sql = "EXPLAIN QUERY PLAN SELECT * FROM " + MEntry.TABLE +
+                " WHERE " + query.selection + " ORDER BY " + TopEntriesQuery.ORDER_BY;
+        Cursor c = mDb.rawQuery(sql, query.selectionArgs);
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+            String text = plan.toString();
+            assertTrue(text, text.contains("USING INDEX " + MEntry.TABLE + "_type_owned_count"));
+            assertFalse(text, text.contains("TEMP B-TREE"));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static List<Long> ids(Cursor c) {
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            int id = c.getColumnIndexOrThrow(MEntry.COL_ID);
+            while (c.moveToNext()) {
+                ids.add(c.getLong(id));
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+}
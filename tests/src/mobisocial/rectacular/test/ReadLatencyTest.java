@@ -0,0 +1,147 @@
+package mobisocial.rectacular.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mobisocial.rectacular.model.DBHelper;
+import mobisocial.rectacular.model.EntryManager;
+import mobisocial.rectacular.model.MEntry;
+import mobisocial.rectacular.model.MUserEntry;
+import mobisocial.rectacular.model.MEntry.EntryType;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures top list reads while objs are ingested in batches, with and
+ * without write-ahead logging. Results are logged under the tag
+ * ReadLatencyTest; run it on a device to compare the journal modes there.
+ */
+public class ReadLatencyTest extends AndroidTestCase {
+    private static final String TAG = "ReadLatencyTest";
+
+    private static final int SEED_ENTRIES = 2000;
+    private static final int BATCHES = 40;
+    private static final int OBJS_PER_BATCH = 25;
+    private static final int ENTRIES_PER_OBJ = 20;
+
+    public void testReadsDuringIngest() throws Exception {
+        long[] journal = measure(false);
+        long[] wal = measure(true);
+        Log.i(TAG, "rollback journal: " + describe(journal));
+        Log.i(TAG, "write-ahead log: " + describe(wal));
+        assertTrue(journal.length > 0);
+        assertTrue(wal.length > 0);
+    }
+
+    /**
+     * @return Read latencies in microseconds, sorted
+     */
+    private long[] measure(boolean writeAheadLogging) throws Exception {
+        File file = getContext().getDatabasePath("read-latency-test.db");
+        deleteDatabase(file);
+        file.getParentFile().mkdirs();
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            if (writeAheadLogging) {
+                db.enableWriteAheadLogging();
+            }
+            new DBHelper(getContext()).onCreate(db);
+            for (int i = 0; i < SEED_ENTRIES; i++) {
+                insertEntry(db, "seed " + i, i % 50);
+            }
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ingest(db);
+                }
+            });
+            EntryManager entryManager = new EntryManager(db);
+            List<Long> latencies = new ArrayList<Long>();
+            writer.start();
+            try {
+                do {
+                    long start = System.nanoTime();
+                    Cursor c = entryManager.getDiscoveredTopEntriesCursor(EntryType.App, 50L);
+                    try {
+                        c.getCount();
+                    } finally {
+                        c.close();
+                    }
+                    latencies.add((System.nanoTime() - start) / 1000);
+                } while (writer.isAlive());
+            } finally {
+                writer.join();
+                entryManager.close();
+            }
+            long[] sorted = new long[latencies.size()];
+            Collections.sort(latencies);
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            return sorted;
+        } finally {
+            db.close();
+            deleteDatabase(file);
+        }
+    }
+
+    /**
+     * Write batches shaped like an inbox drain: each obj adds an owner to
+     * a handful of entries and bumps their counts
+     */
+    private static void ingest(SQLiteDatabase db) {
+        int next = 0;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            db.beginTransaction();
+            try {
+                for (int obj = 0; obj < OBJS_PER_BATCH; obj++) {
+                    String user = "user" + (batch * OBJS_PER_BATCH + obj);
+                    for (int i = 0; i < ENTRIES_PER_OBJ; i++) {
+                        long id = 1 + (next++ % SEED_ENTRIES);
+                        ContentValues values = new ContentValues();
+                        values.put(MUserEntry.COL_ENTRY_ID, id);
+                        values.put(MUserEntry.COL_USER_ID, user);
+                        db.insert(MUserEntry.TABLE, null, values);
+                        db.execSQL("UPDATE " + MEntry.TABLE + " SET " +
+                                MEntry.COL_COUNT + "=" + MEntry.COL_COUNT + "+1 WHERE " +
+                                MEntry.COL_ID + "=" + id);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void insertEntry(SQLiteDatabase db, String name, int count) {
+        ContentValues values = new ContentValues();
+        values.put(MEntry.COL_TYPE, EntryType.App.ordinal());
+        values.put(MEntry.COL_NAME, name);
+        values.put(MEntry.COL_OWNED, 0);
+        values.put(MEntry.COL_COUNT, count);
+        values.put(MEntry.COL_FOLLOWING_COUNT, 0);
+        db.insert(MEntry.TABLE, null, values);
+    }
+
+    private static void deleteDatabase(File file) {
+        for (String suffix : new String[] { "", "-journal", "-wal", "-shm" }) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    private static String describe(long[] sorted) {
+        if (sorted.length == 0) {
+            return "no reads";
+        }
+        return sorted.length + " reads, p50 " + sorted[sorted.length / 2] + "us, p99 " +
+                sorted[Math.min(sorted.length - 1, sorted.length * 99 / 100)] + "us, max " +
+                sorted[sorted.length - 1] + "us";
+    }
+}